@@ -3,14 +3,16 @@ package backend.common;
 import common.Error;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class AbstractCache<T> {
 
-    private HashMap<Long, T> cache;               // 实际缓存的数据
-    private HashMap<Long, Integer> references;    // 引用计数
-    private HashMap<Long, Boolean> getting;       // 正在获取的资源
+    private HashMap<Long, T> cache;                          // 实际缓存的数据
+    private HashMap<Long, Integer> references;               // 引用计数
+    private HashMap<Long, CompletableFuture<T>> getting;     // 正在获取的资源 ==> 加载结果
 
     private int maxResource;
     private int count = 0;
@@ -32,24 +34,21 @@ public abstract class AbstractCache<T> {
     /**
      * 获取资源
      * 1. 从缓存中获取
-     * 2. 缓存中没找到, 则从数据源加载并获取
-     * 3. 加载失败, 抛出异常
+     * 2. 其他线程正在加载该资源时, 等待其加载完成后重新获取; 加载失败则抛出同一个异常
+     * 3. 缓存中没找到, 则从数据源加载并获取
+     * 4. 加载失败, 抛出异常
      * @param key
      * @return
      * @throws Exception
      */
     protected T get(long key) throws Exception {
+        CompletableFuture<T> loading;
         while (true) {
             lock.lock();
-            if (getting.containsKey(key)) {
+            CompletableFuture<T> inFlight = getting.get(key);
+            if (inFlight != null) {
                 lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-
+                await(inFlight);
                 continue;
             }
 
@@ -70,7 +69,8 @@ public abstract class AbstractCache<T> {
 
             // 没满则将资源添加到缓存池
             count += 1;
-            getting.put(key, true);
+            loading = new CompletableFuture<>();
+            getting.put(key, loading);
             lock.unlock();
             break;
         }
@@ -78,11 +78,13 @@ public abstract class AbstractCache<T> {
         T object = null;
         try {
             object = getForCache(key);
-        } catch (Exception e) {
+        } catch (Throwable e) {
+            // 包括 Error, 否则等待者永远不会被唤醒
             lock.lock();
             count -= 1;
             getting.remove(key);
             lock.unlock();
+            loading.completeExceptionally(e);
             throw e;                   // 该错误没有被捕获, 程序会异常退出
         }
 
@@ -91,10 +93,30 @@ public abstract class AbstractCache<T> {
         cache.put(key, object);
         references.put(key, 1);
         lock.unlock();
+        loading.complete(object);      // 在锁外唤醒等待者, 等待者重新加锁并增加引用计数
 
         return object;
     }
 
+    /**
+     * 等待其他线程的加载完成, 不响应中断(与加载线程相同)
+     * 加载失败时抛出加载线程得到的异常
+     */
+    private void await(CompletableFuture<T> loading) throws Exception {
+        try {
+            loading.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof java.lang.Error) {
+                throw (java.lang.Error) cause;
+            }
+            throw e;
+        }
+    }
+
     /**
      * 释放缓存
      * @param key
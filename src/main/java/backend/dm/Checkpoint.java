@@ -0,0 +1,124 @@
+package backend.dm;
+
+import backend.dm.PageCache.PageCache;
+import backend.dm.logger.Logger;
+import backend.dm.page.Page;
+import backend.dm.page.PageFirst;
+import backend.tm.TransactionManager;
+import utils.Panic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 模糊检查点: 不停止事务, 记录运行中的事务与脏页表, 恢复时只需从检查点确定的位置开始扫描日志
+ *
+ * 写日志之前调用 beforeLog, 记录事务第一条日志与页第一次修改的下界(当时的 getFlushedLsn);
+ * 事务提交或回滚之后调用 transactionEnded; 页写回时使用 getDirtyPageTable 的 beginFlush / endFlush.
+ * 这些调用由 LoggedPageCache 在写日志与写回页的路径上完成
+ *
+ * 检查点日志的 LSN 保存在第一页, 第一页写回磁盘之后, 之前检查点的恢复起点之前的日志可以通过 dropObsoleteLog 回收
+ */
+public class Checkpoint {
+    private final TransactionManager tm;
+    private final Logger logger;
+    private final DirtyPageTable dirtyPages;
+    private final ConcurrentHashMap<Long, Long> firstLsns;    // 运行中的事务 ==> 第一条日志的下界
+
+    private volatile long lastStart = -1;    // 最近一次检查点的恢复起点
+
+    public Checkpoint(TransactionManager tm, Logger logger) {
+        this.tm = tm;
+        this.logger = logger;
+        this.dirtyPages = new DirtyPageTable();
+        this.firstLsns = new ConcurrentHashMap<>();
+    }
+
+    public DirtyPageTable getDirtyPageTable() {
+        return dirtyPages;
+    }
+
+    /**
+     * 事务 xid 将写入修改 pageNo 的日志
+     * @param xid
+     * @param pageNo
+     */
+    public void beforeLog(long xid, int pageNo) {
+        long lsn = logger.getFlushedLsn();
+        firstLsns.putIfAbsent(xid, lsn);
+        dirtyPages.markDirty(pageNo, lsn);
+    }
+
+    /**
+     * 延迟回滚: 登记尚未回滚的事务及其第一条日志, 回滚完成前做的检查点保留其日志
+     */
+    public void registerLoser(long xid, long firstLsn) {
+        firstLsns.putIfAbsent(xid, firstLsn);
+    }
+
+    /**
+     * 延迟回滚将写入修改 pageNo 的补偿日志
+     */
+    public void beforeCompensate(int pageNo) {
+        dirtyPages.markDirty(pageNo, logger.getFlushedLsn());
+    }
+
+    public void transactionEnded(long xid) {
+        firstLsns.remove(xid);
+    }
+
+    /**
+     * 写入检查点日志并记录到第一页
+     * 先取日志边界, 之后开始的事务与变脏的页的日志都不早于该边界
+     * @param pageCache
+     * @return 检查点日志的 LSN
+     */
+    public long checkpoint(PageCache pageCache) {
+        Recover.CheckpointInfo info = new Recover.CheckpointInfo();
+        info.beginLsn = logger.getFlushedLsn();
+
+        info.xids = tm.snapshot().getActive();
+        info.firstLsns = new long[info.xids.length];
+        for (int i = 0; i < info.xids.length; i++) {
+            Long lsn = firstLsns.get(info.xids[i]);
+            info.firstLsns[i] = lsn == null ? -1 : lsn;
+        }
+
+        Map<Integer, Long> dirty = dirtyPages.snapshot();
+        info.pageNos = new int[dirty.size()];
+        info.recLsns = new long[dirty.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : dirty.entrySet()) {
+            info.pageNos[i] = entry.getKey();
+            info.recLsns[i] = entry.getValue();
+            i++;
+        }
+
+        long lsn = logger.log(Recover.checkpointLog(info));
+
+        Page first = null;
+        try {
+            first = pageCache.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageFirst.setCheckpointLsn(first, lsn);
+        } finally {
+            first.release();
+        }
+
+        lastStart = info.undoStart();
+        return lsn;
+    }
+
+    /**
+     * 回收最近一次检查点恢复起点之前的日志, 调用前第一页需已写回磁盘
+     */
+    public void dropObsoleteLog() {
+        long start = lastStart;
+        if (start >= 0) {
+            logger.dropBefore(start);
+        }
+    }
+}
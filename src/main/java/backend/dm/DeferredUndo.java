@@ -0,0 +1,130 @@
+package backend.dm;
+
+import backend.dm.PageCache.PageCache;
+import backend.dm.logger.Logger;
+import backend.tm.TransactionManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 延迟回滚: REDO 之后数据库立即打开, 未完成事务的修改按页由后台线程回滚
+ *
+ * 页在回滚之前不能被其他事务使用: LoggedPageCache.setDeferredUndo 之后取页时先调用 ensureUndone(pageNo),
+ * 该页还有未回滚的日志时在调用线程中立即回滚; 后台线程按页号顺序处理其余的页
+ * 同一页上的日志按 LSN 倒序回滚, 不同事务的修改不会重叠, 不需要按事务分组
+ *
+ * 全部页回滚之后才将这些事务标记为已回滚; 之前再次崩溃时它们仍是运行状态, 恢复时重新回滚,
+ * 已写补偿日志的页不再回滚, 见 Recover
+ */
+public class DeferredUndo {
+    private final TransactionManager tm;
+    private final RecoveryIndex index;
+    private final Logger logger;
+    private final PageCache pageCache;
+    private final RecoveryStats stats;
+    private final PageGroups groups;          // 待回滚的日志, 按页分组, 组内 LSN 降序
+    private final ConcurrentHashMap<Integer, Integer> pending;    // 页号 ==> 尚未回滚的组
+    private final boolean[] undone;           // 由对应的组加锁保护
+    private final Object[] locks;
+    private final CountDownLatch finished;
+    private volatile Checkpoint checkpoint;
+
+    DeferredUndo(TransactionManager tm, RecoveryIndex index, Logger logger, PageCache pageCache,
+                 RecoveryStats stats) {
+        this.tm = tm;
+        this.index = index;
+        this.logger = logger;
+        this.pageCache = pageCache;
+        this.stats = stats;
+        this.groups = Recover.loserPageGroups(index);
+        this.pending = new ConcurrentHashMap<>();
+        this.undone = new boolean[groups.size()];
+        this.locks = new Object[groups.size()];
+        for (int g = 0; g < groups.size(); g++) {
+            pending.put(groups.pageNo(g), g);
+            locks[g] = new Object();
+        }
+        this.finished = new CountDownLatch(1);
+    }
+
+    /**
+     * 启动后台回滚线程, 按页号升序处理, 全部完成后将事务标记为已回滚并结束 UNDO 阶段的统计
+     */
+    void start() {
+        Thread worker = new Thread(() -> {
+            for (int g = 0; g < groups.size(); g++) {
+                ensureUndone(groups.pageNo(g));
+            }
+
+            Checkpoint cp = checkpoint;
+            for (int loser = 0; loser < index.loserCount(); loser++) {
+                long xid = index.loserXid(loser);
+                tm.abort(xid);
+                if (cp != null) {
+                    cp.transactionEnded(xid);
+                }
+            }
+            stats.endPhase(RecoveryStats.Phase.UNDO);
+            stats.finish();
+            finished.countDown();
+        }, "recover-undo");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 登记尚未回滚的事务, 之后写补偿日志的页记入脏页表
+     */
+    void register(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        if (isDone()) {
+            return;
+        }
+        for (int loser = 0; loser < index.loserCount(); loser++) {
+            checkpoint.registerLoser(index.loserXid(loser), index.lsn(index.loserRecord(loser, 0)));
+        }
+    }
+
+    /**
+     * 保证页 pageNo 上未完成事务的修改已回滚, 还没有回滚时在当前线程中进行
+     * 回滚时通过 LoggedPageCache 取同一页会再次进入, 直接返回
+     * @param pageNo
+     */
+    public void ensureUndone(int pageNo) {
+        Integer group = pending.get(pageNo);
+        if (group == null || Thread.holdsLock(locks[group])) {
+            return;
+        }
+
+        synchronized (locks[group]) {
+            if (!undone[group]) {
+                Checkpoint cp = checkpoint;
+                if (cp != null) {
+                    cp.beforeCompensate(pageNo);
+                }
+                new Recover.Applier(index, stats).undoGroup(pageCache, logger, groups, group);
+                undone[group] = true;
+            }
+        }
+        pending.remove(pageNo);
+    }
+
+    /**
+     * 等待全部页回滚完成, 返回时事务已标记为已回滚
+     */
+    public void awaitCompletion() throws InterruptedException {
+        finished.await();
+    }
+
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * 尚未回滚的页数
+     */
+    public int getPendingPages() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,71 @@
+package backend.dm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 脏页表: 记录每个脏页的 recLsn, 即该页第一次被修改时日志的边界, 该页的日志都不早于 recLsn
+ *
+ * 使用约定:
+ *     - 修改页之前调用 markDirty, recLsn 取当时的 logger.getFlushedLsn(), 之后写入的日志 LSN 不会更小
+ *     - 写回页时, 复制页数据之前调用 beginFlush, 写入磁盘之后调用 endFlush;
+ *       期间页又被修改时保留原来的 recLsn, 直到下一次写回
+ */
+public class DirtyPageTable {
+    // 页号 ==> [recLsn, 修改次数]
+    private final ConcurrentHashMap<Integer, long[]> pages = new ConcurrentHashMap<>();
+
+    /**
+     * 页将被修改
+     * @param pageNo
+     * @param lsn 当前的日志边界
+     */
+    public void markDirty(int pageNo, long lsn) {
+        pages.compute(pageNo, (k, entry) -> {
+            if (entry == null) {
+                return new long[]{lsn, 0};
+            }
+            entry[1]++;
+            return entry;
+        });
+    }
+
+    /**
+     * 开始写回页
+     * @param pageNo
+     * @return 当前的修改次数, 页不脏时返回 -1
+     */
+    public long beginFlush(int pageNo) {
+        long[] version = {-1};
+        pages.computeIfPresent(pageNo, (k, entry) -> {
+            version[0] = entry[1];
+            return entry;
+        });
+        return version[0];
+    }
+
+    /**
+     * 页已写入磁盘, 期间没有新的修改时移出脏页表
+     * @param pageNo
+     * @param version beginFlush 的返回值
+     */
+    public void endFlush(int pageNo, long version) {
+        pages.computeIfPresent(pageNo, (k, entry) -> entry[1] == version ? null : entry);
+    }
+
+    /**
+     * 当前脏页表的副本: 页号 ==> recLsn
+     * @return
+     */
+    public Map<Integer, Long> snapshot() {
+        Map<Integer, Long> copy = new HashMap<>();
+        // recLsn 在页移出脏页表之前不会改变
+        pages.forEach((pageNo, entry) -> copy.put(pageNo, entry[0]));
+        return copy;
+    }
+
+    public boolean isEmpty() {
+        return pages.isEmpty();
+    }
+}
@@ -0,0 +1,258 @@
+package backend.dm;
+
+import backend.common.SubArray;
+import backend.dm.PageCache.PageCache;
+import backend.dm.dataItem.DataItem;
+import backend.dm.logger.Logger;
+import backend.dm.page.Page;
+import backend.dm.page.PageFirst;
+import backend.dm.page.PageNormal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 带日志的页缓存: 包装底层 PageCache, 数据管理写日志与写回页都经过这里
+ *
+ * 写日志: insert / update 在页锁内先调用 Checkpoint.beforeLog, 再写日志、修改页并设置页 LSN
+ * 事务结束: 提交或回滚之后调用 transactionEnded
+ * 写回页: 页 LSN 之前的日志先落盘, 再在脏页表的 beginFlush / endFlush 之间写回;
+ *     页的最后一个引用释放时(底层缓存随之写回并移出)先经过这里写回脏页, 显式的 flushPage 同样
+ *
+ * getPage 返回的页包装了底层的页, release 回到本类; 数据库的第一页需已创建, 打开时检查页格式版本
+ * 延迟回滚: setDeferredUndo 之后取页时先回滚该页, 恢复时应传入本类, 补偿日志同样先落盘再写回页
+ */
+public class LoggedPageCache implements PageCache {
+    private final PageCache pageCache;
+    private final Logger logger;
+    private final Checkpoint checkpoint;
+    private final Map<Integer, Integer> pins;    // 页号 ==> 引用数, 由自身保护
+    private volatile DeferredUndo deferredUndo;
+
+    public LoggedPageCache(PageCache pageCache, Logger logger, Checkpoint checkpoint) {
+        this.pageCache = pageCache;
+        this.logger = logger;
+        this.checkpoint = checkpoint;
+        this.pins = new HashMap<>();
+
+        Page first = Recover.getPage(pageCache, 1);
+        try {
+            PageFirst.checkFormat(first);
+        } finally {
+            first.release();
+        }
+    }
+
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * 之后取页时先保证该页已回滚, 回滚完成前的检查点保留未回滚事务的日志
+     * @param undo Recover.recoverDeferred 的返回值
+     */
+    public void setDeferredUndo(DeferredUndo undo) {
+        undo.register(checkpoint);
+        this.deferredUndo = undo;
+    }
+
+    @Override
+    public int newPage(byte[] initData) {
+        return pageCache.newPage(initData);
+    }
+
+    @Override
+    public Page getPage(int pgno) throws Exception {
+        DeferredUndo undo = deferredUndo;
+        if (undo != null) {
+            undo.ensureUndone(pgno);
+        }
+        Page page = pageCache.getPage(pgno);
+        synchronized (pins) {
+            pins.merge(pgno, 1, Integer::sum);
+        }
+        return new LoggedPage(page);
+    }
+
+    /**
+     * 释放页的最后一个引用之前写回脏页
+     * @param page
+     */
+    @Override
+    public void release(Page page) {
+        Page inner = unwrap(page);
+        int pgno = inner.getPageNo();
+        boolean last;
+        synchronized (pins) {
+            last = pins.merge(pgno, -1, Integer::sum) <= 0;
+            if (last) {
+                pins.remove(pgno);
+            }
+        }
+
+        if (last && inner.isDirty()) {
+            writeBack(inner);
+        }
+        pageCache.release(inner);
+    }
+
+    @Override
+    public void flushPage(Page pg) {
+        writeBack(unwrap(pg));
+    }
+
+    /**
+     * 写回页: 先保证页 LSN 之前的日志已落盘, 写回期间持有页锁, 页不会被修改
+     */
+    private void writeBack(Page page) {
+        page.lock();
+        try {
+            if (page.getPageNo() > 1) {
+                long lsn = PageNormal.getPageLsn(page);
+                if (lsn >= 0) {
+                    logger.flush(lsn);
+                }
+            }
+
+            DirtyPageTable dirtyPages = checkpoint.getDirtyPageTable();
+            long version = dirtyPages.beginFlush(page.getPageNo());
+            pageCache.flushPage(page);
+            page.setDirty(false);
+            dirtyPages.endFlush(page.getPageNo(), version);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        pageCache.close();
+    }
+
+    @Override
+    public void truncateByBgno(int maxPgno) {
+        pageCache.truncateByBgno(maxPgno);
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageCache.getPageNumber();
+    }
+
+    /**
+     * 插入数据: 写插入日志, 插入并设置页 LSN
+     * @return 数据在页中的偏移
+     */
+    public short insert(long xid, Page page, byte[] data) {
+        page.lock();
+        try {
+            checkpoint.beforeLog(xid, page.getPageNo());
+            long lsn = Recover.logInsert(logger, xid, page, data);
+            return PageNormal.insert(page, data, lsn);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 更新页中 offset 处的数据: 写更新日志, 修改并设置页 LSN
+     */
+    public void update(long xid, Page page, short offset, byte[] data) {
+        page.lock();
+        try {
+            checkpoint.beforeLog(xid, page.getPageNo());
+            byte[] oldData = Arrays.copyOfRange(page.getData(), offset, offset + data.length);
+            SubArray newData = new SubArray(data, 0, data.length);
+            long uid = ((long) page.getPageNo() << 32) | (offset & 0xFFFF);
+            long lsn = logger.log(Recover.updateLog(xid, uid, oldData, newData));
+            PageNormal.update(page, newData, offset, lsn);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 数据项已在页中原地修改(调用者持有数据项的写锁): 写更新日志并设置页 LSN
+     */
+    public void update(long xid, DataItem dataItem, Page page) {
+        page.lock();
+        try {
+            checkpoint.beforeLog(xid, page.getPageNo());
+            long lsn = Recover.logUpdate(logger, xid, dataItem);
+            PageNormal.setPageLsn(page, lsn);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    public void transactionEnded(long xid) {
+        checkpoint.transactionEnded(xid);
+    }
+
+    /**
+     * 做一次检查点: 写入检查点日志, 第一页写回之后回收不再需要的日志
+     * @return 检查点日志的 LSN
+     */
+    public long checkpoint() {
+        long lsn = checkpoint.checkpoint(this);
+        Page first = Recover.getPage(this, 1);
+        try {
+            flushPage(first);
+        } finally {
+            first.release();
+        }
+        checkpoint.dropObsoleteLog();
+        return lsn;
+    }
+
+    private static Page unwrap(Page page) {
+        return page instanceof LoggedPage ? ((LoggedPage) page).page : page;
+    }
+
+    /**
+     * 包装底层的页, 释放时回到 LoggedPageCache
+     */
+    private class LoggedPage implements Page {
+        private final Page page;
+
+        LoggedPage(Page page) {
+            this.page = page;
+        }
+
+        @Override
+        public void lock() {
+            page.lock();
+        }
+
+        @Override
+        public void unlock() {
+            page.unlock();
+        }
+
+        @Override
+        public void release() {
+            LoggedPageCache.this.release(this);
+        }
+
+        @Override
+        public void setDirty(boolean dirty) {
+            page.setDirty(dirty);
+        }
+
+        @Override
+        public boolean isDirty() {
+            return page.isDirty();
+        }
+
+        @Override
+        public int getPageNo() {
+            return page.getPageNo();
+        }
+
+        @Override
+        public byte[] getData() {
+            return page.getData();
+        }
+    }
+}
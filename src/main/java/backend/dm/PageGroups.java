@@ -0,0 +1,76 @@
+package backend.dm;
+
+import backend.common.LongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * 按页号分组的日志编号, 组内保持加入的顺序, 组可以按页号升序排列
+ */
+class PageGroups {
+    private final LongIntHashMap slots = new LongIntHashMap();    // 页号 ==> 组
+    private int[] pageNos = new int[16];
+    private int[][] records = new int[16][];
+    private int[] counts = new int[16];
+    private int size;
+
+    void add(int pageNo, int record) {
+        int group = slots.get(pageNo, -1);
+        if (group < 0) {
+            if (size == pageNos.length) {
+                pageNos = Arrays.copyOf(pageNos, size * 2);
+                records = Arrays.copyOf(records, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            group = size++;
+            pageNos[group] = pageNo;
+            records[group] = new int[4];
+            slots.put(pageNo, group);
+        }
+
+        if (counts[group] == records[group].length) {
+            records[group] = Arrays.copyOf(records[group], counts[group] * 2);
+        }
+        records[group][counts[group]++] = record;
+    }
+
+    /**
+     * 按页号升序重排各组, 之后不能再加入日志
+     */
+    void sortByPageNo() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(pageNos[a], pageNos[b]));
+
+        int[] sortedPageNos = new int[size];
+        int[][] sortedRecords = new int[size][];
+        int[] sortedCounts = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedPageNos[i] = pageNos[order[i]];
+            sortedRecords[i] = records[order[i]];
+            sortedCounts[i] = counts[order[i]];
+        }
+        pageNos = sortedPageNos;
+        records = sortedRecords;
+        counts = sortedCounts;
+        slots.clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    int pageNo(int group) {
+        return pageNos[group];
+    }
+
+    int count(int group) {
+        return counts[group];
+    }
+
+    int record(int group, int i) {
+        return records[group][i];
+    }
+}
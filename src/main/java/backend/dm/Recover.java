@@ -5,12 +5,12 @@ import backend.dm.PageCache.PageCache;
 import backend.dm.dataItem.DataItem;
 import backend.dm.logger.Logger;
 import backend.dm.page.Page;
+import backend.dm.page.PageFirst;
 import backend.dm.page.PageNormal;
 import backend.tm.TransactionManager;
-import com.google.common.primitives.Bytes;
 import utils.Panic;
-import utils.Parser;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -19,9 +19,21 @@ import java.util.*;
  * 日志策略: 更新数据文件前必须先进行对应的日志操作, 保证日志写入磁盘后, 再进行数据操作
  *     - 插入操作日志: (LogType, TransactionId, Position, Data)
  *     - 更新操作日志: (LogType, TransactionId, UID, Position, OldData, NewData)
+ *     - 差量更新日志: (LogType, TransactionId, UID, [Offset, Length, OldRun, NewRun]...), 只记录变化的字节段
+ *     - 检查点日志: (LogType, BeginLsn, [XID, FirstLsn]..., [PageNo, RecLsn]...), 见 Checkpoint
+ *     - 补偿日志: (LogType, PageNo, [Position, Data]...), 回滚一页之前写入, 记录回滚写入页中的数据
  *
+ * 分析: 只读一遍日志, 每个 XID 只查询一次状态, 需要的日志记录到 RecoveryIndex(内存上限之内复制内容),
+ *     REDO 与 UNDO 按索引分组, 只有超出内存上限的日志需要重新读取
  * REDO: 正序扫描事务的日志, 执行日志文件中的数据操作
- * UNDO: 倒序扫描事务的日志, 执行日志文件中的数据逆操作, 插入的逆操作是删除, 但数据库没有真正的数据删除操作, 只是修改其中的标志位
+ * UNDO: 倒序扫描事务的日志, 执行日志文件中的数据逆操作, 插入的逆操作是删除, 但数据库没有真正的数据删除操作, 只是修改其中的标志位;
+ *     每页的逆操作先写成补偿日志再按补偿日志修改页, 全部页回滚之后才将事务标记为已回滚
+ *
+ * 页 LSN: REDO 跳过 LSN 不大于页 LSN 的日志(修改已在页中), 重做与回滚后设置页 LSN, 重复恢复结果不变
+ * 补偿日志: 与其他日志一起 REDO; 回滚中途崩溃时事务仍是运行状态, 再次恢复只回滚该页补偿日志之后的日志,
+ *     已回滚的页不会再次回滚, 覆盖之后其他事务的修改
+ * 检查点: 第一页记录最近一次检查点日志的 LSN, REDO 从最早的 recLsn 开始, UNDO 还需包含检查点时运行中事务的第一条日志,
+ * 没有检查点时从头扫描
  *
  * 数据恢复:
  *     - 单线程事务: 各事务之间的日志不会相交, 按顺序存储
@@ -33,9 +45,9 @@ public class Recover {
 
     private static final byte INSERT_LOG_FLAG = 0;
     private static final byte UPDATE_LOG_FLAG = 1;
-
-    private static final int REDO_FLAG = 0;
-    private static final int UNDO_FLAG = 1;
+    private static final byte DELTA_UPDATE_LOG_FLAG = 2;
+    private static final byte CHECKPOINT_LOG_FLAG = 3;
+    private static final byte COMPENSATION_LOG_FLAG = 4;
 
     /**
      * InsertLog: [LogType, XID, PageNo, Position, Data]
@@ -52,204 +64,719 @@ public class Recover {
     private static final int UPDATE_UID_OFFSET = XID_OFFSET + 8;          // uid: long
     private static final int UPDATE_DATA_OFFSET = UPDATE_UID_OFFSET + 8;
 
+    /**
+     * DeltaUpdateLog: [LogType, XID, UID, Run...]
+     * Run: [Offset(2), Length(2), OldData, NewData], Offset 为相对数据项起始位置的偏移
+     */
+    private static final int RUN_HEADER_SIZE = 4;
+    // 两段变化之间相同的字节数不超过该值时合并为一段, 合并的代价(2 * gap)不超过新段的描述信息
+    private static final int RUN_MERGE_GAP = RUN_HEADER_SIZE / 2;
+
+    /**
+     * CheckpointLog: [LogType, BeginLsn, XIDCount, [XID, FirstLsn]..., PageCount, [PageNo, RecLsn]...]
+     */
+    private static final int CHECKPOINT_BEGIN_OFFSET = TYPE_OFFSET + 1;
+    private static final int CHECKPOINT_XID_COUNT_OFFSET = CHECKPOINT_BEGIN_OFFSET + 8;
+
+    /**
+     * CompensationLog: [LogType, PageNo, Range...]
+     * Range: [Position(2), Length(2), Data], 按顺序写入页
+     */
+    private static final int COMPENSATION_PAGE_NO_OFFSET = TYPE_OFFSET + 1;
+    private static final int COMPENSATION_DATA_OFFSET = COMPENSATION_PAGE_NO_OFFSET + 4;
+    private static final int RANGE_HEADER_SIZE = 4;
+
+    // logInsert / logUpdate 使用的描述信息缓冲区, 日志写入后即可重用
+    private static final ThreadLocal<ByteBuffer> LOG_HEADER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(Math.max(INSERT_DATA_OFFSET, UPDATE_DATA_OFFSET)));
+
 
 
     static class InsertLogInfo {
         long xid;
         int pageNo;
         short position;
-        byte[] data;
+        SubArray data = new SubArray(null, 0, 0);
     }
 
     static class UpdateLogInfo {
         long xid;
         int pageNo;
         short position;
-        byte[] oldData;
-        byte[] newData;
+        SubArray oldData = new SubArray(null, 0, 0);
+        SubArray newData = new SubArray(null, 0, 0);
+    }
+
+    /**
+     * 检查点: 写检查点之前的日志边界, 运行中事务及其第一条日志的下界, 脏页及其 recLsn
+     * firstLsn 为 -1 表示该事务还没有写日志
+     */
+    static class CheckpointInfo {
+        long beginLsn;
+        long[] xids;
+        long[] firstLsns;
+        int[] pageNos;
+        long[] recLsns;
+
+        /**
+         * REDO 的起点: 之前的修改都已写回磁盘
+         */
+        long redoStart() {
+            long start = beginLsn;
+            for (long lsn : recLsns) {
+                start = Math.min(start, lsn);
+            }
+            return start;
+        }
+
+        /**
+         * UNDO 的起点: 还包含检查点时运行中事务的全部日志
+         */
+        long undoStart() {
+            long start = redoStart();
+            for (long lsn : firstLsns) {
+                if (lsn >= 0) {
+                    start = Math.min(start, lsn);
+                }
+            }
+            return start;
+        }
+    }
+
+    static class DeltaUpdateLogInfo {
+        long xid;
+        int pageNo;
+        short position;
+        SubArray runs = new SubArray(null, 0, 0);
     }
 
 
     /**
-     * REDO: 事务处于非运行状态, 恢复时则重做
-     *
+     * 崩溃恢复: 从最近一次检查点确定的位置开始读一遍日志建立索引, 再由索引 REDO, 最后 UNDO 未完成的事务
      * @param tm
      * @param logger
      * @param pageCache
      */
-    private static void redoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        logger.rewind();   // 定位到日志开始位置
-        while (true) {
-            byte[] log = logger.next();    // 获取去除描述信息的log
-            if (log == null) {
-                break;
+    public static void recover(TransactionManager tm, Logger logger, PageCache pageCache) {
+        recover(tm, logger, pageCache, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param redoThreads 并行 REDO 的线程数, 为 1 时在当前线程重做
+     */
+    public static void recover(TransactionManager tm, Logger logger, PageCache pageCache, int redoThreads) {
+        recover(tm, logger, pageCache, redoThreads, RecoveryListener.NONE);
+    }
+
+    /**
+     * @param listener 各阶段开始、结束与恢复完成时通知, 计数同时通过 JMX(RecoveryStats.OBJECT_NAME)提供
+     * @return 本次恢复的统计
+     */
+    public static RecoveryStats recover(TransactionManager tm, Logger logger, PageCache pageCache, int redoThreads,
+                                        RecoveryListener listener) {
+        RecoveryStats stats = new RecoveryStats(listener);
+        RecoveryIndex index = analyzeAndRedo(tm, logger, pageCache, redoThreads, stats);
+        stats.beginPhase(RecoveryStats.Phase.UNDO);
+        undoTransactions(tm, index, logger, pageCache, stats);
+        stats.endPhase(RecoveryStats.Phase.UNDO);
+        stats.finish();
+        return stats;
+    }
+
+    /**
+     * 延迟回滚的崩溃恢复: REDO 之后立即返回, 回滚由后台线程按页进行, 全部完成后才将未完成的事务标记为已回滚
+     * 数据库可以马上打开, 数据管理通过 LoggedPageCache.setDeferredUndo 在取页时先回滚该页, 见 DeferredUndo
+     *
+     * @param redoThreads 并行 REDO 的线程数
+     * @return 进行中的回滚
+     */
+    public static DeferredUndo recoverDeferred(TransactionManager tm, Logger logger, PageCache pageCache,
+                                               int redoThreads) {
+        return recoverDeferred(tm, logger, pageCache, redoThreads, RecoveryListener.NONE);
+    }
+
+    /**
+     * @param listener UNDO 阶段结束与恢复完成的通知在后台回滚线程中进行
+     */
+    public static DeferredUndo recoverDeferred(TransactionManager tm, Logger logger, PageCache pageCache,
+                                               int redoThreads, RecoveryListener listener) {
+        RecoveryStats stats = new RecoveryStats(listener);
+        RecoveryIndex index = analyzeAndRedo(tm, logger, pageCache, redoThreads, stats);
+
+        stats.beginPhase(RecoveryStats.Phase.UNDO);
+        DeferredUndo undo = new DeferredUndo(tm, index, logger, pageCache, stats);
+        undo.start();
+        return undo;
+    }
+
+    private static RecoveryIndex analyzeAndRedo(TransactionManager tm, Logger logger, PageCache pageCache,
+                                                int redoThreads, RecoveryStats stats) {
+        if (redoThreads < 1) {
+            throw new IllegalArgumentException("redoThreads must be positive");
+        }
+
+        long redoStart = 0;
+        long undoStart = 0;
+
+        CheckpointInfo checkpoint = readCheckpoint(logger, pageCache);
+        if (checkpoint != null) {
+            redoStart = checkpoint.redoStart();
+            undoStart = checkpoint.undoStart();
+        }
+
+        stats.beginPhase(RecoveryStats.Phase.ANALYSIS);
+        RecoveryIndex index = analyze(tm, logger, redoStart, undoStart, stats);
+        stats.endPhase(RecoveryStats.Phase.ANALYSIS);
+
+        stats.beginPhase(RecoveryStats.Phase.REDO);
+        redoTransactions(index, pageCache, redoThreads, stats);
+        stats.endPhase(RecoveryStats.Phase.REDO);
+        return index;
+    }
+
+    /**
+     * 检查页格式版本, 读取第一页记录的检查点日志, 没有时返回 null
+     */
+    private static CheckpointInfo readCheckpoint(Logger logger, PageCache pageCache) {
+        Page first = getPage(pageCache, 1);
+        long lsn;
+        try {
+            PageFirst.checkFormat(first);
+            lsn = PageFirst.getCheckpointLsn(first);
+        } finally {
+            first.release();
+        }
+        if (lsn <= 0) {
+            return null;
+        }
+
+        CheckpointInfo[] checkpoint = {null};
+        logger.scan(lsn, (l, log) -> {
+            if (l == lsn && isCheckpointLog(log)) {
+                checkpoint[0] = parseCheckpointLog(log);
             }
+            return false;
+        });
+        return checkpoint[0];
+    }
 
-            if (isInsertLog(log)) {
-                InsertLogInfo insertLogInfo = parseInsertLog(log);
-                long xid = insertLogInfo.xid;
+    /**
+     * 分析: 从 start 开始读一遍日志, 建立事务状态缓存与恢复索引
+     * 需要回滚的事务的日志全部保留; 其他事务的日志从 redoStart 开始保留, 用于 REDO;
+     * 补偿日志全部保留, 并记录每页最后一条补偿日志, 之前的回滚事务日志已在该页回滚
+     *
+     * @param tm
+     * @param logger
+     * @param redoStart
+     * @param start
+     * @param stats
+     * @return
+     */
+    private static RecoveryIndex analyze(TransactionManager tm, Logger logger, long redoStart, long start,
+                                         RecoveryStats stats) {
+        RecoveryIndex index = new RecoveryIndex(tm, logger);
+
+        logger.scan(start, (lsn, log) -> {
+            stats.recordScanned(log.getEnd() - log.getStart());
+            if (isCheckpointLog(log)) {
+                return true;
+            }
+            if (isCompensationLog(log)) {
+                index.addCompensation(lsn, log);
+                return true;
+            }
 
-                if (!tm.isActive(xid)) {
-                    // TODO: redo
-                    doInsertLog(pageCache, log, REDO_FLAG);
-                }
+            int loser = index.loserOf(parseXid(log));
+            if (loser >= 0) {
+                index.addLoserRecord(loser, index.add(lsn, log));
             }
-            else {
-                UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-                long xid = updateLogInfo.xid;
+            else if (lsn >= redoStart) {
+                index.add(lsn, log);
+            }
+            return true;
+        });
+        return index;
+    }
+
+    /**
+     * REDO: 事务处于非运行状态, 恢复时则重做
+     * 日志按页分组, 组内保持 LSN 顺序, 每组只取一次页; 各组按页号升序轮流分给 threads 个线程,
+     * 每个线程按页号升序读页, 不同页的重做与读页互相重叠
+     *
+     * @param index
+     * @param pageCache
+     * @param threads
+     * @param stats
+     */
+    private static void redoTransactions(RecoveryIndex index, PageCache pageCache, int threads, RecoveryStats stats) {
+        PageGroups groups = new PageGroups();
+        int redoRecords = 0;
+        int undoRecords = 0;
+        for (int i = 0; i < index.size(); i++) {
+            if (index.ownerOf(i) < 0) {
+                groups.add(index.pageNo(i), i);
+                redoRecords++;
+            }
+            else if (!index.isCompensated(i)) {
+                undoRecords++;
+            }
+        }
+        groups.sortByPageNo();
+        stats.setWork(redoRecords, undoRecords, index.loserCount());
+
+        if (threads == 1) {
+            redoGroups(index, pageCache, groups, 0, 1, stats);
+            return;
+        }
 
-                if (!tm.isActive(xid)) {
-                    // TODO: redo
-                    doUpdateLog(pageCache, log, REDO_FLAG);
+        Thread[] workers = new Thread[threads];
+        Exception[] error = {null};
+        for (int w = 0; w < threads; w++) {
+            int first = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    redoGroups(index, pageCache, groups, first, threads, stats);
+                } catch (Exception e) {
+                    synchronized (error) {
+                        error[0] = e;
+                    }
                 }
+            }, "recover-redo-" + w);
+            workers[w].start();
+        }
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
             }
         }
+        if (error[0] != null) {
+            Panic.panic(error[0]);
+        }
+    }
+
+    /**
+     * 重做第 first, first + step, ... 组日志
+     */
+    private static void redoGroups(RecoveryIndex index, PageCache pageCache, PageGroups groups, int first, int step,
+                                   RecoveryStats stats) {
+        Applier applier = new Applier(index, stats);
+        for (int g = first; g < groups.size(); g += step) {
+            applier.redoGroup(pageCache, groups, g);
+        }
     }
 
     /**
      * UNDO: 事务处于运行状态, 恢复时则回滚
+     * 所有回滚事务的日志按页分组, 组内按 LSN 倒序回滚(不同事务的修改不会重叠), 每组写一条补偿日志、只取一次页,
+     * 全部回滚之后将事务标记为已回滚
      *
      * @param tm
+     * @param index
      * @param logger
      * @param pageCache
+     * @param stats
      */
-    private static void undoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        logger.rewind();
+    private static void undoTransactions(TransactionManager tm, RecoveryIndex index, Logger logger,
+                                         PageCache pageCache, RecoveryStats stats) {
+        PageGroups groups = loserPageGroups(index);
+        Applier applier = new Applier(index, stats);
+        for (int g = 0; g < groups.size(); g++) {
+            applier.undoGroup(pageCache, logger, groups, g);
+        }
+
+        for (int loser = 0; loser < index.loserCount(); loser++) {
+            tm.abort(index.loserXid(loser));
+        }
+    }
 
-        while (true) {
-            byte[] log = logger.next();
-            if (log == null) {
-                break;
+    /**
+     * 回滚事务的日志按页分组, 组内 LSN 降序, 组按页号升序; 已由补偿日志回滚的日志不再回滚
+     */
+    static PageGroups loserPageGroups(RecoveryIndex index) {
+        int total = 0;
+        for (int loser = 0; loser < index.loserCount(); loser++) {
+            total += index.loserRecordCount(loser);
+        }
+        // 日志编号即 LSN 顺序
+        int[] records = new int[total];
+        int n = 0;
+        for (int loser = 0; loser < index.loserCount(); loser++) {
+            for (int i = 0; i < index.loserRecordCount(loser); i++) {
+                int record = index.loserRecord(loser, i);
+                if (!index.isCompensated(record)) {
+                    records[n++] = record;
+                }
             }
+        }
+        records = Arrays.copyOf(records, n);
+        Arrays.sort(records);
 
-            if (isInsertLog(log)) {
-                InsertLogInfo insertLogInfo = parseInsertLog(log);
-                long xid = insertLogInfo.xid;
+        PageGroups groups = new PageGroups();
+        for (int i = records.length - 1; i >= 0; i--) {
+            groups.add(index.pageNo(records[i]), records[i]);
+        }
+        groups.sortByPageNo();
+        return groups;
+    }
 
-                if (tm.isAborted(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
+    static Page getPage(PageCache pageCache, int pageNo) {
+        Page page = null;
+        try {
+            page = pageCache.getPage(pageNo);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return page;
+    }
+
+    /**
+     * 重做或回滚索引中的日志, 解析结果重复使用, 不复制日志数据; 每个线程使用自己的 Applier
+     */
+    static class Applier {
+        private final RecoveryIndex index;
+        private final RecoveryStats stats;
+        private final InsertLogInfo insertLogInfo = new InsertLogInfo();
+        private final UpdateLogInfo updateLogInfo = new UpdateLogInfo();
+        private final DeltaUpdateLogInfo deltaLogInfo = new DeltaUpdateLogInfo();
+        private final SubArray log = new SubArray(null, 0, 0);
+
+        Applier(RecoveryIndex index, RecoveryStats stats) {
+            this.index = index;
+            this.stats = stats;
+        }
 
-                    logCache.get(xid).add(log);
+        /**
+         * 重做第 g 组日志, 整组只取一次页
+         */
+        void redoGroup(PageCache pageCache, PageGroups groups, int g) {
+            Page page = getPage(pageCache, groups.pageNo(g));
+            stats.pageFetched();
+            try {
+                for (int i = 0; i < groups.count(g); i++) {
+                    stats.recordApplied(redo(groups.record(g, i), page));
                 }
+            } finally {
+                page.release();
             }
-            else {
-                UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-                long xid = updateLogInfo.xid;
-
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
+        }
 
-                    logCache.get(xid).add(log);
+        /**
+         * 回滚第 g 组日志: 整组的逆操作写成一条补偿日志, 在页锁内写日志并按补偿日志修改页
+         */
+        void undoGroup(PageCache pageCache, Logger logger, PageGroups groups, int g) {
+            byte[] compensation = compensationLog(groups, g);
+            Page page = getPage(pageCache, groups.pageNo(g));
+            stats.pageFetched();
+            try {
+                page.lock();
+                try {
+                    long lsn = logger.log(compensation);
+                    setView(log, compensation, 0, compensation.length);
+                    doCompensationLog(page, log, lsn);
+                } finally {
+                    page.unlock();
+                }
+                for (int i = 0; i < groups.count(g); i++) {
+                    stats.recordApplied(true);
                 }
+            } finally {
+                page.release();
+            }
+        }
+
+        /**
+         * @return 修改已在页中而跳过时返回 false
+         */
+        private boolean redo(int record, Page page) {
+            long lsn = index.lsn(record);
+            index.view(record, log);
+            if (isInsertLog(log)) {
+                parseInsertLog(log, insertLogInfo);
+                return doInsertLog(page, insertLogInfo, lsn);
+            }
+            else if (isDeltaUpdateLog(log)) {
+                parseDeltaUpdateLog(log, deltaLogInfo);
+                return doDeltaUpdateLog(page, deltaLogInfo, lsn);
+            }
+            else if (isCompensationLog(log)) {
+                return doCompensationLog(page, log, lsn);
+            }
+            else {
+                parseUpdateLog(log, updateLogInfo);
+                return doUpdateLog(page, updateLogInfo, lsn);
             }
         }
 
-        // 倒序 UNDO
-        for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
+        /**
+         * 按 LSN 倒序收集第 g 组日志的逆操作: 插入写入标记为无效的数据, 更新与差量更新写入旧数据
+         */
+        private byte[] compensationLog(PageGroups groups, int g) {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            buf.put(COMPENSATION_LOG_FLAG).putInt(groups.pageNo(g));
+            for (int i = 0; i < groups.count(g); i++) {
+                index.view(groups.record(g, i), log);
                 if (isInsertLog(log)) {
-                    // TODO: undo
-                    doInsertLog(pageCache, log, UNDO_FLAG);
+                    parseInsertLog(log, insertLogInfo);
+                    // setDataItemInvalid 只接受完整的数组
+                    byte[] data = Arrays.copyOfRange(insertLogInfo.data.getArray(),
+                            insertLogInfo.data.getStart(), insertLogInfo.data.getEnd());
+                    DataItem.setDataItemInvalid(data);
+                    buf = putRange(buf, insertLogInfo.position, data, 0, data.length);
+                }
+                else if (isDeltaUpdateLog(log)) {
+                    parseDeltaUpdateLog(log, deltaLogInfo);
+                    byte[] raw = deltaLogInfo.runs.getArray();
+                    int cursor = deltaLogInfo.runs.getStart();
+                    while (cursor < deltaLogInfo.runs.getEnd()) {
+                        int offset = readShort(raw, cursor) & 0xFFFF;
+                        int length = readShort(raw, cursor + 2) & 0xFFFF;
+                        buf = putRange(buf, (short) (deltaLogInfo.position + offset), raw,
+                                cursor + RUN_HEADER_SIZE, length);
+                        cursor += RUN_HEADER_SIZE + 2 * length;
+                    }
                 }
                 else {
-                    // TODO: undo
-                    doUpdateLog(pageCache, log, UNDO_FLAG);
+                    parseUpdateLog(log, updateLogInfo);
+                    SubArray oldData = updateLogInfo.oldData;
+                    buf = putRange(buf, updateLogInfo.position, oldData.getArray(), oldData.getStart(),
+                            oldData.getEnd() - oldData.getStart());
                 }
             }
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+    }
 
-            tm.abort(entry.getKey());
+    /**
+     * 向补偿日志追加一段数据, 空间不足时换成更大的缓冲区
+     */
+    private static ByteBuffer putRange(ByteBuffer buf, short position, byte[] raw, int start, int length) {
+        if (buf.remaining() < RANGE_HEADER_SIZE + length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buf.capacity() * 2,
+                    buf.position() + RANGE_HEADER_SIZE + length));
+            buf.flip();
+            buf = larger.put(buf);
         }
+        return buf.putShort(position)
+                .putShort((short) length)
+                .put(raw, start, length);
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == INSERT_LOG_FLAG;
+    private static boolean isInsertLog(SubArray log) {
+        return log.getArray()[log.getStart()] == INSERT_LOG_FLAG;
     }
 
-    private static boolean isUpdateLog(byte[] log) {
-        return log[0] == UPDATE_LOG_FLAG;
+    private static boolean isUpdateLog(SubArray log) {
+        return log.getArray()[log.getStart()] == UPDATE_LOG_FLAG;
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
-        InsertLogInfo info = new InsertLogInfo();
+    private static boolean isDeltaUpdateLog(SubArray log) {
+        return log.getArray()[log.getStart()] == DELTA_UPDATE_LOG_FLAG;
+    }
 
-        info.xid = Parser.parseBytesToLong(Arrays.copyOfRange(log, XID_OFFSET, PAGE_NO_OFFSET));
-        info.pageNo = Parser.parseBytesToInt(Arrays.copyOfRange(log, PAGE_NO_OFFSET, POSITION_OFFSET));
-        info.position = Parser.parseBytesToShort(Arrays.copyOfRange(log, POSITION_OFFSET, INSERT_DATA_OFFSET));
-        info.data = Arrays.copyOfRange(log, INSERT_DATA_OFFSET, log.length);
+    private static boolean isCheckpointLog(SubArray log) {
+        return log.getArray()[log.getStart()] == CHECKPOINT_LOG_FLAG;
+    }
 
-        return info;
+    private static boolean isCompensationLog(SubArray log) {
+        return log.getArray()[log.getStart()] == COMPENSATION_LOG_FLAG;
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
-        UpdateLogInfo info = new UpdateLogInfo();
+    private static long parseXid(SubArray log) {
+        return readLong(log.getArray(), log.getStart() + XID_OFFSET);
+    }
 
-        info.xid = Parser.parseBytesToLong(Arrays.copyOfRange(log, XID_OFFSET, UPDATE_UID_OFFSET));
+    /**
+     * 原地解析插入日志, data 指向日志中的数据
+     */
+    private static void parseInsertLog(SubArray log, InsertLogInfo info) {
+        byte[] raw = log.getArray();
+        int start = log.getStart();
+
+        info.xid = readLong(raw, start + XID_OFFSET);
+        info.pageNo = readInt(raw, start + PAGE_NO_OFFSET);
+        info.position = readShort(raw, start + POSITION_OFFSET);
+        setView(info.data, raw, start + INSERT_DATA_OFFSET, log.getEnd());
+    }
 
-        long uid = Parser.parseBytesToLong(Arrays.copyOfRange(log, UPDATE_UID_OFFSET, UPDATE_DATA_OFFSET));
+    /**
+     * 原地解析更新日志, oldData / newData 指向日志中的数据
+     */
+    private static void parseUpdateLog(SubArray log, UpdateLogInfo info) {
+        byte[] raw = log.getArray();
+        int start = log.getStart();
+
+        info.xid = readLong(raw, start + XID_OFFSET);
+
+        long uid = readLong(raw, start + UPDATE_UID_OFFSET);
         info.position = (short) (uid & ((1L << 16)) - 1);
         uid >>>= 32;
         info.pageNo = (int) (uid & ((1L << 32) - 1));
 
-        int length = (log.length - UPDATE_DATA_OFFSET) / 2;
-        info.oldData = Arrays.copyOfRange(log, UPDATE_DATA_OFFSET, UPDATE_DATA_OFFSET + length);
-        info.newData = Arrays.copyOfRange(log, UPDATE_DATA_OFFSET + length, UPDATE_DATA_OFFSET + 2 * length);
+        int dataStart = start + UPDATE_DATA_OFFSET;
+        int length = (log.getEnd() - dataStart) / 2;
+        setView(info.oldData, raw, dataStart, dataStart + length);
+        setView(info.newData, raw, dataStart + length, dataStart + 2 * length);
+    }
 
-        return info;
+    /**
+     * 原地解析差量更新日志, runs 指向日志中的变化段
+     */
+    private static void parseDeltaUpdateLog(SubArray log, DeltaUpdateLogInfo info) {
+        byte[] raw = log.getArray();
+        int start = log.getStart();
+
+        info.xid = readLong(raw, start + XID_OFFSET);
+
+        long uid = readLong(raw, start + UPDATE_UID_OFFSET);
+        info.position = (short) (uid & ((1L << 16)) - 1);
+        uid >>>= 32;
+        info.pageNo = (int) (uid & ((1L << 32) - 1));
+
+        setView(info.runs, raw, start + UPDATE_DATA_OFFSET, log.getEnd());
     }
 
-    private static void doInsertLog(PageCache pageCache, byte[] log, int flag) {
-        InsertLogInfo info = parseInsertLog(log);
-        Page page = null;
+    /**
+     * 日志修改的页
+     */
+    static int parsePageNo(SubArray log) {
+        byte[] raw = log.getArray();
+        int start = log.getStart();
+        if (isInsertLog(log)) {
+            return readInt(raw, start + PAGE_NO_OFFSET);
+        }
+        if (isCompensationLog(log)) {
+            return readInt(raw, start + COMPENSATION_PAGE_NO_OFFSET);
+        }
+        return (int) (readLong(raw, start + UPDATE_UID_OFFSET) >>> 32);
+    }
 
-        try {
-            page = pageCache.getPage(info.pageNo);
-        } catch (Exception e) {
-            Panic.panic(e);
+    private static CheckpointInfo parseCheckpointLog(SubArray log) {
+        ByteBuffer buf = ByteBuffer.wrap(log.getArray(), log.getStart(), log.getEnd() - log.getStart()).slice();
+        CheckpointInfo info = new CheckpointInfo();
+
+        buf.position(CHECKPOINT_BEGIN_OFFSET);
+        info.beginLsn = buf.getLong();
+        int xidCount = buf.getInt();
+        info.xids = new long[xidCount];
+        info.firstLsns = new long[xidCount];
+        for (int i = 0; i < xidCount; i++) {
+            info.xids[i] = buf.getLong();
+            info.firstLsns[i] = buf.getLong();
         }
 
-        try {
-            if (flag == REDO_FLAG) {
-                DataItem.setDataItemInvalid(info.data);
-            }
+        int pageCount = buf.getInt();
+        info.pageNos = new int[pageCount];
+        info.recLsns = new long[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            info.pageNos[i] = buf.getInt();
+            info.recLsns[i] = buf.getLong();
+        }
+        return info;
+    }
 
-            PageNormal.recoverInsert(page, info.data, info.position);
-        } finally {
-            page.release();    // 引用减1
+    private static void setView(SubArray view, byte[] raw, int start, int end) {
+        view.setArray(raw);
+        view.setStart(start);
+        view.setEnd(end);
+    }
+
+    private static long readLong(byte[] raw, int offset) {
+        return ((long) readInt(raw, offset) << 32) | (readInt(raw, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int readInt(byte[] raw, int offset) {
+        return ((raw[offset] & 0xFF) << 24) | ((raw[offset + 1] & 0xFF) << 16)
+                | ((raw[offset + 2] & 0xFF) << 8) | (raw[offset + 3] & 0xFF);
+    }
+
+    private static short readShort(byte[] raw, int offset) {
+        return (short) (((raw[offset] & 0xFF) << 8) | (raw[offset + 1] & 0xFF));
+    }
+
+    /**
+     * 页 LSN 不小于日志的 LSN, 说明修改已在页中
+     */
+    private static boolean isApplied(Page page, long lsn) {
+        return lsn <= PageNormal.getPageLsn(page);
+    }
+
+    /**
+     * 重做之后将页 LSN 设置为日志的 LSN, 回滚之后设置为补偿日志的 LSN
+     */
+    private static void stampPage(Page page, long lsn) {
+        PageNormal.setPageLsn(page, lsn);
+    }
+
+    private static boolean doInsertLog(Page page, InsertLogInfo info, long lsn) {
+        if (isApplied(page, lsn)) {
+            return false;
         }
+
+        PageNormal.recoverInsert(page, info.data, info.position);
+        stampPage(page, lsn);
+        return true;
     }
 
-    private static void doUpdateLog(PageCache pageCache, byte[] log, int flag) {
-        UpdateLogInfo info = parseUpdateLog(log);
-        int pageNo = info.pageNo;
-        short position = info.position;
+    private static boolean doUpdateLog(Page page, UpdateLogInfo info, long lsn) {
+        if (isApplied(page, lsn)) {
+            return false;
+        }
 
-        byte[] data = null;
-        if (flag == REDO_FLAG) {
-            data = info.newData;
+        PageNormal.recoverUpdate(page, info.newData, info.position);
+        stampPage(page, lsn);
+        return true;
+    }
+
+    /**
+     * 逐段写入差量更新的新数据
+     */
+    private static boolean doDeltaUpdateLog(Page page, DeltaUpdateLogInfo info, long lsn) {
+        if (isApplied(page, lsn)) {
+            return false;
         }
-        else {
-            data = info.oldData;
+
+        byte[] raw = info.runs.getArray();
+        SubArray data = new SubArray(raw, 0, 0);
+        int cursor = info.runs.getStart();
+        while (cursor < info.runs.getEnd()) {
+            int offset = readShort(raw, cursor) & 0xFFFF;
+            int length = readShort(raw, cursor + 2) & 0xFFFF;
+            int newStart = cursor + RUN_HEADER_SIZE + length;
+
+            data.setStart(newStart);
+            data.setEnd(newStart + length);
+            PageNormal.recoverUpdate(page, data, (short) (info.position + offset));
+            cursor = newStart + length;
         }
+        stampPage(page, lsn);
+        return true;
+    }
 
-        Page page = null;
-        try {
-            page = pageCache.getPage(info.pageNo);
-        } catch (Exception e) {
-            Panic.panic(e);
+    /**
+     * 按顺序写入补偿日志中的各段, 回滚的插入可能不在页中, 按插入写入以推进空闲位置
+     */
+    private static boolean doCompensationLog(Page page, SubArray log, long lsn) {
+        if (isApplied(page, lsn)) {
+            return false;
         }
 
-        try {
-            PageNormal.recoverUpdate(page, data, position);
-        } finally {
-            page.release();
+        byte[] raw = log.getArray();
+        SubArray data = new SubArray(raw, 0, 0);
+        int cursor = log.getStart() + COMPENSATION_DATA_OFFSET;
+        while (cursor < log.getEnd()) {
+            short position = readShort(raw, cursor);
+            int length = readShort(raw, cursor + 2) & 0xFFFF;
+
+            data.setStart(cursor + RANGE_HEADER_SIZE);
+            data.setEnd(cursor + RANGE_HEADER_SIZE + length);
+            PageNormal.recoverInsert(page, data, position);
+            cursor += RANGE_HEADER_SIZE + length;
         }
+        stampPage(page, lsn);
+        return true;
     }
 
     /**
@@ -258,12 +785,10 @@ public class Recover {
      * @return
      */
     public static byte[] insertLog(long xid, Page page, byte[] data) {
-        byte[] logTypeRaw = {INSERT_LOG_FLAG};
-        byte[] xidRaw = Parser.parseLongToBytes(xid);
-        byte[] pageNoRaw = Parser.parseIntToBytes(page.getPageNo());
-        byte[] positionRaw = Parser.parseShortToBytes(PageNormal.getFSO(page));    // 获取当前页指针指向的空闲位置
+        ByteBuffer log = ByteBuffer.allocate(INSERT_DATA_OFFSET + data.length);
+        putInsertHeader(log, xid, page);
 
-        return Bytes.concat(logTypeRaw, xidRaw, pageNoRaw, positionRaw, data);
+        return log.put(data).array();
     }
 
     /**
@@ -272,14 +797,160 @@ public class Recover {
      * @return
      */
     public static byte[] updateLog(long xid, DataItem dataItem) {
-        byte[] logTypeRaw = {UPDATE_LOG_FLAG};
-        byte[] xidRaw = Parser.parseLongToBytes(xid);
-        byte[] uidRaw = Parser.parseLongToBytes(dataItem.getUid());
-        byte[] oldData = dataItem.getOldData();
+        return updateLog(xid, dataItem.getUid(), dataItem.getOldData(), dataItem.getData());
+    }
+
+    static byte[] updateLog(long xid, long uid, byte[] oldData, SubArray data) {
+        int newLength = data.getEnd() - data.getStart();
+
+        byte[] delta = deltaUpdateLog(xid, uid, oldData, data);
+        if (delta != null) {
+            return delta;
+        }
+
+        ByteBuffer log = ByteBuffer.allocate(UPDATE_DATA_OFFSET + oldData.length + newLength);
+        putUpdateHeader(log, xid, uid);
+
+        return log.put(oldData).put(data.getArray(), data.getStart(), newLength).array();
+    }
+
+    /**
+     * 差量更新日志, 只记录新旧数据中不同的字节段
+     * DeltaUpdateLog: [LogType, XID, UID, [Offset(2), Length(2), OldData, NewData]...]
+     * @return 差量日志不比完整日志小时(如新旧数据长度不同)返回 null
+     */
+    public static byte[] deltaUpdateLog(long xid, DataItem dataItem) {
+        return deltaUpdateLog(xid, dataItem.getUid(), dataItem.getOldData(), dataItem.getData());
+    }
+
+    static byte[] deltaUpdateLog(long xid, long uid, byte[] oldData, SubArray data) {
+        byte[] raw = data.getArray();
+        int base = data.getStart();
+        int length = data.getEnd() - base;
+        if (oldData.length != length || length > 0xFFFF) {
+            return null;
+        }
+
+        // 第一遍计算变化段和日志长度, 超过完整日志时放弃
+        int[] runs = diffRuns(oldData, raw, base, length);
+        int size = UPDATE_DATA_OFFSET;
+        for (int i = 0; i < runs.length; i += 2) {
+            size += RUN_HEADER_SIZE + 2 * runs[i + 1];
+        }
+        if (size >= UPDATE_DATA_OFFSET + 2 * length) {
+            return null;
+        }
+
+        ByteBuffer log = ByteBuffer.allocate(size);
+        log.put(DELTA_UPDATE_LOG_FLAG)
+                .putLong(xid)
+                .putLong(uid);
+        for (int i = 0; i < runs.length; i += 2) {
+            int offset = runs[i], runLength = runs[i + 1];
+            log.putShort((short) offset)
+                    .putShort((short) runLength)
+                    .put(oldData, offset, runLength)
+                    .put(raw, base + offset, runLength);
+        }
+        return log.array();
+    }
+
+    /**
+     * 比较新旧数据, 返回变化段 [offset0, length0, offset1, length1, ...]
+     * 间隔不超过 RUN_MERGE_GAP 的相邻变化段合并
+     */
+    private static int[] diffRuns(byte[] oldData, byte[] raw, int base, int length) {
+        int[] runs = new int[8];
+        int count = 0;
+        int i = 0;
+        while (i < length) {
+            if (oldData[i] == raw[base + i]) {
+                i++;
+                continue;
+            }
+
+            int start = i, end = i + 1;
+            for (int j = end; j < length && j - end <= RUN_MERGE_GAP; j++) {
+                if (oldData[j] != raw[base + j]) {
+                    end = j + 1;
+                }
+            }
+
+            if (count + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[count++] = start;
+            runs[count++] = end - start;
+            i = end;
+        }
+        return Arrays.copyOf(runs, count);
+    }
+
+    /**
+     * 检查点日志
+     * CheckpointLog: [LogType, BeginLsn, XIDCount, [XID, FirstLsn]..., PageCount, [PageNo, RecLsn]...]
+     * @return
+     */
+    static byte[] checkpointLog(CheckpointInfo info) {
+        ByteBuffer log = ByteBuffer.allocate(CHECKPOINT_XID_COUNT_OFFSET + 4 + info.xids.length * 16
+                + 4 + info.pageNos.length * 12);
+        log.put(CHECKPOINT_LOG_FLAG)
+                .putLong(info.beginLsn)
+                .putInt(info.xids.length);
+        for (int i = 0; i < info.xids.length; i++) {
+            log.putLong(info.xids[i]).putLong(info.firstLsns[i]);
+        }
+
+        log.putInt(info.pageNos.length);
+        for (int i = 0; i < info.pageNos.length; i++) {
+            log.putInt(info.pageNos[i]).putLong(info.recLsns[i]);
+        }
+        return log.array();
+    }
+
+    /**
+     * 直接写入插入日志: 描述信息写入线程私有的缓冲区, 与数据一起聚集写入, 不拼接数组
+     * @return 日志的 LSN
+     */
+    public static long logInsert(Logger logger, long xid, Page page, byte[] data) {
+        ByteBuffer header = LOG_HEADER.get();
+        header.clear();
+        putInsertHeader(header, xid, page);
+        header.flip();
+
+        return logger.log(header, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 直接写入更新日志, 变化较少时写入差量日志, 否则新数据直接从 DataItem 的视图写入
+     * @return 日志的 LSN
+     */
+    public static long logUpdate(Logger logger, long xid, DataItem dataItem) {
+        byte[] delta = deltaUpdateLog(xid, dataItem);
+        if (delta != null) {
+            return logger.log(delta);
+        }
+
+        ByteBuffer header = LOG_HEADER.get();
+        header.clear();
+        putUpdateHeader(header, xid, dataItem.getUid());
+        header.flip();
 
         SubArray data = dataItem.getData();
-        byte[] newData = Arrays.copyOfRange(data.getArray(), data.getStart(), data.getEnd());
+        return logger.log(header, ByteBuffer.wrap(dataItem.getOldData()),
+                ByteBuffer.wrap(data.getArray(), data.getStart(), data.getEnd() - data.getStart()));
+    }
+
+    private static void putInsertHeader(ByteBuffer buf, long xid, Page page) {
+        buf.put(INSERT_LOG_FLAG)
+                .putLong(xid)
+                .putInt(page.getPageNo())
+                .putShort(PageNormal.getFSO(page));    // 获取当前页指针指向的空闲位置
+    }
 
-        return Bytes.concat(logTypeRaw, xidRaw, uidRaw, oldData, newData);
+    private static void putUpdateHeader(ByteBuffer buf, long xid, long uid) {
+        buf.put(UPDATE_LOG_FLAG)
+                .putLong(xid)
+                .putLong(uid);
     }
 }
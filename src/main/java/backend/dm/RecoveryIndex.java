@@ -0,0 +1,233 @@
+package backend.dm;
+
+import backend.common.LongIntHashMap;
+import backend.common.SubArray;
+import backend.dm.logger.Logger;
+import backend.tm.TransactionManager;
+import common.Error;
+import utils.Panic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 分析阶段建立的恢复索引
+ *
+ * 事务状态缓存: 每个 XID 只查询一次 TransactionManager
+ * 日志: 需要 REDO / UNDO 的日志按 LSN 顺序编号, 记录 LSN、长度、修改的页与所属的回滚事务;
+ *     内容复制到固定大小的块中(地址为块号 + 块内偏移), 复制的总量超过内存上限后只记录位置,
+ *     使用时从日志中重新读取
+ * 事务索引: 需要回滚的事务 ==> 其日志编号(按 LSN 升序)
+ * 补偿日志: 页号 ==> 最后一条补偿日志的 LSN, 之前修改该页的回滚事务日志已经回滚
+ */
+class RecoveryIndex {
+    // 日志副本所在块的大小, 更大的日志单独占一块
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final TransactionManager tm;
+    private final Logger logger;
+    private final LongIntHashMap losers;    // XID ==> 回滚事务的序号, 不回滚时为 -1
+
+    private final int chunkSize;
+    private final long memoryBudget;        // 复制到内存中的日志总量上限
+    private byte[][] chunks = new byte[16][];
+    private int chunkCount;
+    private int chunkUsed;                  // 最后一块已使用的字节数
+    private long copied;
+
+    private long[] lsns = new long[1024];
+    private long[] addresses = new long[1024];    // 块号 << 32 | 块内偏移, 没有复制时为 -1
+    private int[] lengths = new int[1024];
+    private int[] pageNos = new int[1024];
+    private int[] owners = new int[1024];         // 所属回滚事务的序号, 不回滚时为 -1
+    private int count;
+
+    private long[] loserXids = new long[16];
+    private int[][] loserRecords = new int[16][];
+    private int[] loserRecordCounts = new int[16];
+    private int loserCount;
+
+    private final Map<Integer, Long> compensated = new HashMap<>();
+
+    RecoveryIndex(TransactionManager tm, Logger logger) {
+        this(tm, logger, CHUNK_SIZE, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    RecoveryIndex(TransactionManager tm, Logger logger, int chunkSize, long memoryBudget) {
+        this.tm = tm;
+        this.logger = logger;
+        this.losers = new LongIntHashMap();
+        this.chunkSize = chunkSize;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * 崩溃时仍在运行的事务需要回滚
+     * @return 回滚事务的序号, 不需要回滚时返回 -1
+     */
+    int loserOf(long xid) {
+        int loser = losers.get(xid, -2);
+        if (loser != -2) {
+            return loser;
+        }
+
+        loser = -1;
+        if (tm.isActive(xid)) {
+            if (loserCount == loserXids.length) {
+                int capacity = loserCount * 2;
+                loserXids = Arrays.copyOf(loserXids, capacity);
+                loserRecords = Arrays.copyOf(loserRecords, capacity);
+                loserRecordCounts = Arrays.copyOf(loserRecordCounts, capacity);
+            }
+            loser = loserCount++;
+            loserXids[loser] = xid;
+            loserRecords[loser] = new int[16];
+        }
+        losers.put(xid, loser);
+        return loser;
+    }
+
+    boolean isLoser(long xid) {
+        return loserOf(xid) >= 0;
+    }
+
+    /**
+     * 记录一条日志, 未超过内存上限时复制其内容
+     * @return 日志编号
+     */
+    int add(long lsn, SubArray log) {
+        int length = log.getEnd() - log.getStart();
+        if (count == lsns.length) {
+            int capacity = count * 2;
+            lsns = Arrays.copyOf(lsns, capacity);
+            addresses = Arrays.copyOf(addresses, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            pageNos = Arrays.copyOf(pageNos, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+        }
+        lsns[count] = lsn;
+        lengths[count] = length;
+        pageNos[count] = Recover.parsePageNo(log);
+        owners[count] = -1;
+        addresses[count] = copied + length <= memoryBudget ? copy(log, length) : -1;
+        return count++;
+    }
+
+    /**
+     * 复制到最后一块, 放不下时新开一块
+     * @return 地址
+     */
+    private long copy(SubArray log, int length) {
+        if (chunkCount == 0 || chunkUsed + length > chunks[chunkCount - 1].length) {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            }
+            int size = (int) Math.max(Math.min(chunkSize, memoryBudget - copied), length);
+            chunks[chunkCount++] = new byte[size];
+            chunkUsed = 0;
+        }
+
+        int chunk = chunkCount - 1;
+        System.arraycopy(log.getArray(), log.getStart(), chunks[chunk], chunkUsed, length);
+        long address = ((long) chunk << 32) | chunkUsed;
+        chunkUsed += length;
+        copied += length;
+        return address;
+    }
+
+    /**
+     * 记录回滚事务的一条日志
+     */
+    void addLoserRecord(int loser, int record) {
+        int n = loserRecordCounts[loser];
+        if (n == loserRecords[loser].length) {
+            loserRecords[loser] = Arrays.copyOf(loserRecords[loser], n * 2);
+        }
+        loserRecords[loser][n] = record;
+        loserRecordCounts[loser] = n + 1;
+        owners[record] = loser;
+    }
+
+    /**
+     * 记录一条补偿日志, 与其他事务的日志一样 REDO
+     */
+    void addCompensation(long lsn, SubArray log) {
+        int record = add(lsn, log);
+        compensated.merge(pageNos[record], lsn, Math::max);
+    }
+
+    /**
+     * @return 日志修改的页之后有补偿日志, 即已经回滚时返回 true
+     */
+    boolean isCompensated(int record) {
+        Long lsn = compensated.get(pageNos[record]);
+        return lsn != null && lsns[record] < lsn;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long lsn(int record) {
+        return lsns[record];
+    }
+
+    int pageNo(int record) {
+        return pageNos[record];
+    }
+
+    /**
+     * @return 日志所属回滚事务的序号, 不回滚时为 -1
+     */
+    int ownerOf(int record) {
+        return owners[record];
+    }
+
+    /**
+     * 让 view 指向编号为 record 的日志
+     * 复制过的日志指向块中的副本, 块在分析阶段结束后不再变化; 其他日志从日志中重新读取到新的数组
+     * 可以由多个线程同时调用
+     */
+    void view(int record, SubArray view) {
+        long address = addresses[record];
+        if (address >= 0) {
+            int start = (int) address;
+            view.setArray(chunks[(int) (address >>> 32)]);
+            view.setStart(start);
+            view.setEnd(start + lengths[record]);
+            return;
+        }
+
+        byte[][] data = {null};
+        long lsn = lsns[record];
+        logger.scan(lsn, (l, log) -> {
+            if (l == lsn) {
+                data[0] = Arrays.copyOfRange(log.getArray(), log.getStart(), log.getEnd());
+            }
+            return false;
+        });
+        if (data[0] == null || data[0].length != lengths[record]) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        view.setArray(data[0]);
+        view.setStart(0);
+        view.setEnd(data[0].length);
+    }
+
+    int loserCount() {
+        return loserCount;
+    }
+
+    long loserXid(int loser) {
+        return loserXids[loser];
+    }
+
+    int loserRecordCount(int loser) {
+        return loserRecordCounts[loser];
+    }
+
+    int loserRecord(int loser, int i) {
+        return loserRecords[loser][i];
+    }
+}
@@ -0,0 +1,20 @@
+package backend.dm;
+
+/**
+ * 崩溃恢复的监听器, 在阶段开始、结束和恢复完成时被调用, 可以从 stats 读取当前的计数
+ * 延迟回滚时 UNDO 阶段的结束与 finished 在后台回滚线程中调用; 恢复的汇总可以在 finished 中由 stats.summary() 取得
+ */
+public interface RecoveryListener {
+    RecoveryListener NONE = new RecoveryListener() {};
+
+    default void phaseStarted(RecoveryStats.Phase phase, RecoveryStats stats) {}
+
+    default void phaseFinished(RecoveryStats.Phase phase, RecoveryStats stats) {}
+
+    default void finished(RecoveryStats stats) {}
+
+    /**
+     * 统计注册到 JMX 失败, 恢复继续进行, 计数仍可从 stats 读取
+     */
+    default void registrationFailed(Exception e, RecoveryStats stats) {}
+}
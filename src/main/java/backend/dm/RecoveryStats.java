@@ -0,0 +1,201 @@
+package backend.dm;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 崩溃恢复的进度与耗时统计
+ *
+ * 计数由分析线程、REDO 线程和回滚线程并发更新, 使用 LongAdder 避免线程间竞争同一个计数;
+ * 创建时注册到 JMX(替换上一次恢复的注册), 注册失败时通知监听器; 汇总由 summary 提供, 恢复结束时随 finished 通知
+ */
+public class RecoveryStats implements RecoveryStatsMBean {
+    public static final String OBJECT_NAME = "mydb:type=Recovery";
+
+    public enum Phase {
+        ANALYSIS, REDO, UNDO, DONE
+    }
+
+    private final RecoveryListener listener;
+
+    private final LongAdder recordsScanned = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder recordsApplied = new LongAdder();
+    private final LongAdder recordsSkipped = new LongAdder();
+    private final LongAdder pagesFetched = new LongAdder();
+    private volatile long redoRecords;
+    private volatile long undoRecords;
+    private volatile long loserTransactions;
+
+    private volatile Phase phase;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long phaseStart;
+    private boolean inPhase;
+    private final long startNanos;
+
+    RecoveryStats(RecoveryListener listener) {
+        this.listener = listener;
+        this.startNanos = System.nanoTime();
+        register();
+    }
+
+    /**
+     * JMX 只用于监控, 注册失败交给监听器处理, 恢复继续进行
+     */
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            listener.registrationFailed(e, this);
+        }
+    }
+
+    void beginPhase(Phase phase) {
+        synchronized (phaseNanos) {
+            this.phase = phase;
+            this.phaseStart = System.nanoTime();
+            this.inPhase = true;
+        }
+        listener.phaseStarted(phase, this);
+    }
+
+    void endPhase(Phase phase) {
+        synchronized (phaseNanos) {
+            phaseNanos[phase.ordinal()] = System.nanoTime() - phaseStart;
+            inPhase = false;
+        }
+        listener.phaseFinished(phase, this);
+    }
+
+    /**
+     * 恢复结束: 通知监听器
+     */
+    void finish() {
+        phase = Phase.DONE;
+        listener.finished(this);
+    }
+
+    void recordScanned(int bytes) {
+        recordsScanned.increment();
+        bytesRead.add(bytes);
+    }
+
+    void recordApplied(boolean applied) {
+        if (applied) {
+            recordsApplied.increment();
+        }
+        else {
+            recordsSkipped.increment();
+        }
+    }
+
+    void pageFetched() {
+        pagesFetched.increment();
+    }
+
+    void setWork(long redoRecords, long undoRecords, long loserTransactions) {
+        this.redoRecords = redoRecords;
+        this.undoRecords = undoRecords;
+        this.loserTransactions = loserTransactions;
+    }
+
+    public String summary() {
+        return String.format("Recovery %s in %d ms: scanned %d records (%d bytes), "
+                        + "applied %d, skipped %d of %d redo + %d undo records, fetched %d pages, "
+                        + "%d loser transactions; analysis %d ms, redo %d ms, undo %d ms",
+                phase == Phase.DONE ? "finished" : "at " + phase,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                getRecordsScanned(), getBytesRead(),
+                getRecordsApplied(), getRecordsSkipped(), redoRecords, undoRecords, getPagesFetched(),
+                loserTransactions, getAnalysisMillis(), getRedoMillis(), getUndoMillis());
+    }
+
+    @Override
+    public String getPhase() {
+        Phase current = phase;
+        return current == null ? "" : current.name();
+    }
+
+    @Override
+    public long getRecordsScanned() {
+        return recordsScanned.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getRedoRecords() {
+        return redoRecords;
+    }
+
+    @Override
+    public long getUndoRecords() {
+        return undoRecords;
+    }
+
+    @Override
+    public long getRecordsApplied() {
+        return recordsApplied.sum();
+    }
+
+    @Override
+    public long getRecordsSkipped() {
+        return recordsSkipped.sum();
+    }
+
+    @Override
+    public long getPagesFetched() {
+        return pagesFetched.sum();
+    }
+
+    @Override
+    public long getLoserTransactions() {
+        return loserTransactions;
+    }
+
+    @Override
+    public double getProgress() {
+        long total = redoRecords + undoRecords;
+        if (total == 0) {
+            return phase == Phase.DONE ? 1 : 0;
+        }
+        return Math.min(1, (double) (getRecordsApplied() + getRecordsSkipped()) / total);
+    }
+
+    @Override
+    public long getAnalysisMillis() {
+        return phaseMillis(Phase.ANALYSIS);
+    }
+
+    @Override
+    public long getRedoMillis() {
+        return phaseMillis(Phase.REDO);
+    }
+
+    @Override
+    public long getUndoMillis() {
+        return phaseMillis(Phase.UNDO);
+    }
+
+    /**
+     * 进行中的阶段返回已经过的时间
+     */
+    private long phaseMillis(Phase p) {
+        long nanos;
+        synchronized (phaseNanos) {
+            nanos = inPhase && phase == p ? System.nanoTime() - phaseStart : phaseNanos[p.ordinal()];
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,51 @@
+package backend.dm;
+
+/**
+ * 崩溃恢复的 JMX 接口, 注册为 mydb:type=Recovery
+ * 计数在恢复过程中持续更新, 恢复结束后保留最终值, 直到下一次恢复
+ */
+public interface RecoveryStatsMBean {
+    /**
+     * 当前阶段: ANALYSIS / REDO / UNDO / DONE
+     */
+    String getPhase();
+
+    long getRecordsScanned();
+
+    /**
+     * 分析阶段读取的日志数据字节数
+     */
+    long getBytesRead();
+
+    /**
+     * 需要重做的日志数, 分析结束后确定
+     */
+    long getRedoRecords();
+
+    /**
+     * 需要回滚的日志数, 分析结束后确定
+     */
+    long getUndoRecords();
+
+    long getRecordsApplied();
+
+    /**
+     * 页 LSN 表明修改已在页中而跳过的日志数
+     */
+    long getRecordsSkipped();
+
+    long getPagesFetched();
+
+    long getLoserTransactions();
+
+    /**
+     * 已处理的 REDO / UNDO 日志所占比例, 0 ~ 1
+     */
+    double getProgress();
+
+    long getAnalysisMillis();
+
+    long getRedoMillis();
+
+    long getUndoMillis();
+}
@@ -0,0 +1,640 @@
+package backend.dm.logger;
+
+import backend.common.SubArray;
+import common.Error;
+import utils.Panic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 块压缩日志: 日志先放入内存中的块, 块满(或需要落盘)时整块压缩, 作为一条日志写入底层日志
+ *
+ * 块格式: [base] [codec] [rawLength] [rawChecksum] [compressed]
+ *     - base: 8 byte, 块中第一条日志的 LSN
+ *     - codec: 1 byte, 压缩算法 id, 0 表示不压缩(压缩后没有变小)
+ *     - rawLength: 4 byte, 解压后的长度
+ *     - rawChecksum: 4 byte, 解压后数据的 CRC32C
+ * 块解压后: [size] [data] [size] [data] ...
+ * 底层日志的校验和保护压缩后的数据, rawChecksum 检查解压结果, 底层日志截掉 bad_tail 时整块丢弃
+ *
+ * LSN: 日志在解压后的日志流中的偏移, 与底层日志的 LSN 无关; 块索引记录每个块的 base 与底层 LSN
+ *
+ * log 不等待落盘时日志留在当前块中, 块满时写入底层日志(不等待落盘); 等待落盘的 log / flush
+ * 立即封装当前块. 块内未写入底层日志的日志不落盘, next() / scan() 也读不到
+ *
+ * logAsync 同样只把日志放入当前块(块满时封装), 由写线程封装当前块并等待落盘后完成 future;
+ * 写线程等待落盘期间到达的异步日志留在下一个块中, 由下一轮一起封装
+ * 块索引在封装块(写入底层日志)时更新, 不等待落盘
+ *
+ * 底层可以是 LoggerImpl 或 SegmentedLogger, 文件头使用单独的版本(见 LoggerImpl.VERSION_COMPRESSED):
+ * 压缩日志不能作为普通日志打开, 普通日志也不能作为压缩日志打开, Logger.open 按文件头自动识别
+ *
+ * 打开时不扫描日志, 块索引与日志流末尾在第一次需要时重建(见 ensureIndex); 从头 scan 完整个日志时顺便重建
+ */
+public class CompressedLogger implements Logger {
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final byte STORED = 0;
+    private static final int BASE_OFFSET = 0;
+    private static final int CODEC_OFFSET = BASE_OFFSET + 8;
+    private static final int RAW_LENGTH_OFFSET = CODEC_OFFSET + 1;
+    private static final int RAW_CHECKSUM_OFFSET = RAW_LENGTH_OFFSET + 4;
+    private static final int BLOCK_HEADER_LENGTH = RAW_CHECKSUM_OFFSET + 4;
+    private static final int RECORD_HEADER_LENGTH = 4;
+
+    private final Logger inner;
+    private final int blockSize;
+    private final LogCodec codec;
+    private final Map<Byte, LogCodec> codecs;
+
+    private final Lock lock;                // 保护当前块, 保证块按 base 顺序写入底层日志
+    private byte[] block;
+    private int used;
+    private long blockBase;                 // 当前块的 base, 即已写入底层日志的日志流末尾
+    private volatile boolean indexed;       // 块索引与 blockBase 是否已重建, 在 lock 下修改
+    private final ArrayDeque<long[]> unflushed;    // 不等待落盘写入的块 [底层 LSN, 块末尾]
+    private final AtomicLong durableEnd;    // 已落盘的日志流末尾
+
+    // 等待落盘的异步日志, 由 lock 保护
+    private List<Long> asyncLsns;
+    private List<CompletableFuture<Long>> asyncFutures;
+    private final Condition asyncReady;
+    private Thread asyncWriter;
+    private boolean closed;
+
+    // 块索引: base ==> 底层 LSN, 用于 dropBefore / truncate
+    private final ConcurrentSkipListMap<Long, Long> index;
+
+    // next() 的读取状态, 由 lock 保护
+    private byte[] readBuf = new byte[0];
+    private int readLength;
+    private int readPosition;
+
+    /**
+     * 包装一个新建或已有的压缩日志
+     * @param inner 底层日志, 必须是压缩日志的格式
+     * @param blockSize 块大小
+     * @param codec 新块使用的压缩算法
+     * @param readCodecs 读取旧块时额外支持的压缩算法
+     */
+    public CompressedLogger(Logger inner, int blockSize, LogCodec codec, LogCodec... readCodecs) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        if (codec.getId() == STORED) {
+            throw new IllegalArgumentException("codec id 0 is reserved");
+        }
+        if (!(inner instanceof LoggerImpl) || !((LoggerImpl) inner).isCompressed()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+
+        this.inner = inner;
+        this.blockSize = blockSize;
+        this.codec = codec;
+        this.codecs = new HashMap<>();
+        for (LogCodec c : readCodecs) {
+            codecs.put(c.getId(), c);
+        }
+        codecs.put(codec.getId(), codec);
+
+        this.lock = new ReentrantLock();
+        this.block = new byte[blockSize];
+        this.unflushed = new ArrayDeque<>();
+        this.index = new ConcurrentSkipListMap<>();
+        this.durableEnd = new AtomicLong(0);
+        this.asyncLsns = new ArrayList<>();
+        this.asyncFutures = new ArrayList<>();
+        this.asyncReady = lock.newCondition();
+    }
+
+    /**
+     * 新建使用 Deflate 压缩的日志
+     * @param path
+     * @return
+     */
+    public static CompressedLogger create(String path) {
+        LoggerConfig config = LoggerConfig.defaultConfig();
+        config.setCompressed(true);
+        return (CompressedLogger) Logger.create(path, config);
+    }
+
+    public static CompressedLogger open(String path) {
+        Logger logger = Logger.open(path);
+        if (!(logger instanceof CompressedLogger)) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return (CompressedLogger) logger;
+    }
+
+    /**
+     * 第一次需要时扫描一遍块的描述信息, 重建块索引并确定日志流末尾
+     * 调用时需持有 lock
+     */
+    private void ensureIndex() {
+        if (indexed) {
+            return;
+        }
+
+        long[] end = {0};
+        inner.scan((lsn, log) -> {
+            long base = readLong(log.getArray(), log.getStart() + BASE_OFFSET);
+            index.put(base, lsn);
+            end[0] = base + LoggerImpl.readInt(log.getArray(), log.getStart() + RAW_LENGTH_OFFSET);
+            return true;
+        });
+        setEnd(end[0]);
+    }
+
+    /**
+     * 调用时需持有 lock
+     */
+    private void setEnd(long end) {
+        blockBase = end;
+        durableEnd.set(end);
+        indexed = true;
+    }
+
+    @Override
+    public long log(byte[] data) {
+        return log(data, true);
+    }
+
+    @Override
+    public long log(byte[] data, boolean sync) {
+        long lsn;
+        long end = -1;
+        lock.lock();
+        try {
+            lsn = put(data, 0, data.length);
+            if (sync) {
+                end = seal();
+            }
+            else if (used >= blockSize) {
+                seal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (sync) {
+            waitDurable(end);
+        }
+        return lsn;
+    }
+
+    @Override
+    public long log(ByteBuffer... parts) {
+        int size = 0;
+        for (ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+
+        long lsn;
+        long end;
+        lock.lock();
+        try {
+            lsn = reserve(size);
+            for (ByteBuffer part : parts) {
+                int length = part.remaining();
+                part.get(block, used, length);
+                used += length;
+            }
+            end = seal();
+        } finally {
+            lock.unlock();
+        }
+
+        waitDurable(end);
+        return lsn;
+    }
+
+    @Override
+    public CompletableFuture<Long> logAsync(byte[] data) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (closed) {
+                future.completeExceptionally(Error.LogClosedException);
+                return future;
+            }
+
+            long lsn = put(data, 0, data.length);
+            if (used >= blockSize) {
+                seal();
+            }
+            asyncLsns.add(lsn);
+            asyncFutures.add(future);
+
+            if (asyncWriter == null) {
+                asyncWriter = new Thread(this::runAsyncWriter, "compressed-log-async-writer");
+                asyncWriter.setDaemon(true);
+                asyncWriter.start();
+            }
+            asyncReady.signal();
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * 写线程: 取走等待中的异步日志, 封装当前块, 等待落盘后完成 future
+     * 关闭后处理完剩余的异步日志再退出
+     */
+    private void runAsyncWriter() {
+        while (true) {
+            List<Long> lsns;
+            List<CompletableFuture<Long>> futures;
+            long end;
+            lock.lock();
+            try {
+                while (asyncFutures.isEmpty() && !closed) {
+                    asyncReady.awaitUninterruptibly();
+                }
+                if (asyncFutures.isEmpty()) {
+                    return;
+                }
+
+                lsns = asyncLsns;
+                futures = asyncFutures;
+                asyncLsns = new ArrayList<>();
+                asyncFutures = new ArrayList<>();
+                end = used > 0 ? seal() : blockBase;
+            } finally {
+                lock.unlock();
+            }
+
+            waitDurable(end);
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).complete(lsns.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void flush(long lsn) {
+        if (lsn >= 0 && lsn < durableEnd.get()) {
+            return;
+        }
+
+        long end;
+        lock.lock();
+        try {
+            ensureIndex();
+            end = used > 0 && (lsn < 0 || lsn >= blockBase) ? seal() : blockBase;
+        } finally {
+            lock.unlock();
+        }
+        waitDurable(end);
+    }
+
+    @Override
+    public long getFlushedLsn() {
+        long innerFlushed = inner.getFlushedLsn();
+        lock.lock();
+        try {
+            ensureIndex();
+            while (!unflushed.isEmpty() && unflushed.peekFirst()[0] < innerFlushed) {
+                long end = unflushed.pollFirst()[1];
+                durableEnd.accumulateAndGet(end, Math::max);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return durableEnd.get();
+    }
+
+    /**
+     * 回收 lsn 所在块之前的块
+     * @param lsn
+     */
+    @Override
+    public void dropBefore(long lsn) {
+        lock.lock();
+        try {
+            ensureIndex();
+        } finally {
+            lock.unlock();
+        }
+
+        Map.Entry<Long, Long> entry = index.floorEntry(lsn);
+        if (entry == null) {
+            return;
+        }
+
+        inner.dropBefore(entry.getValue());
+        index.headMap(entry.getKey()).clear();
+    }
+
+    /**
+     * 截断到 x, x 必须是块的边界
+     * @param x
+     * @throws Exception
+     */
+    @Override
+    public void truncate(long x) throws Exception {
+        lock.lock();
+        try {
+            ensureIndex();
+            if (x >= blockBase) {
+                if (x != blockBase) {
+                    throw new IllegalArgumentException("truncate inside a block");
+                }
+                used = 0;
+                return;
+            }
+
+            Long innerLsn = index.get(x);
+            if (innerLsn == null) {
+                throw new IllegalArgumentException("truncate inside a block");
+            }
+            inner.truncate(innerLsn);
+            index.tailMap(x).clear();
+            unflushed.clear();
+            durableEnd.set(x);
+            blockBase = x;
+            used = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] next() {
+        lock.lock();
+        try {
+            if (readPosition >= readLength) {
+                byte[] raw = inner.next();
+                if (raw == null) {
+                    return null;
+                }
+
+                readLength = decode(raw, 0, raw.length);
+                readPosition = 0;
+            }
+
+            int size = LoggerImpl.readInt(readBuf, readPosition);
+            int start = readPosition + RECORD_HEADER_LENGTH;
+            readPosition = start + size;
+            return Arrays.copyOfRange(readBuf, start, start + size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 逐块解压到重复使用的缓冲区, 每条日志以视图交给 visitor
+     * @param visitor
+     */
+    @Override
+    public void scan(LogVisitor visitor) {
+        scan(0, visitor);
+    }
+
+    /**
+     * 从 lsn 所在的块开始解压, 跳过块中 lsn 之前的日志
+     * 块索引尚未重建时, 从头读完整个日志的 scan 顺便重建
+     * @param lsn
+     * @param visitor
+     */
+    @Override
+    public void scan(long lsn, LogVisitor visitor) {
+        boolean rebuild = lsn <= 0 && !indexed;
+        long innerLsn = 0;
+        if (!rebuild) {
+            lock.lock();
+            try {
+                ensureIndex();
+            } finally {
+                lock.unlock();
+            }
+            Map.Entry<Long, Long> entry = index.floorEntry(lsn);
+            innerLsn = entry == null ? 0 : entry.getValue();
+        }
+
+        SubArray view = new SubArray(null, 0, 0);
+        byte[][] buf = {new byte[blockSize]};
+        long[] end = {0};
+        boolean[] stopped = {false};
+        inner.scan(innerLsn, (l, log) -> {
+            byte[] raw = log.getArray();
+            long base = readLong(raw, log.getStart() + BASE_OFFSET);
+            int length = decode(raw, log.getStart(), log.getEnd(), buf);
+            if (rebuild) {
+                index.put(base, l);
+                end[0] = base + length;
+            }
+
+            view.setArray(buf[0]);
+            int position = (int) Math.max(0, Math.min(lsn - base, length));
+            while (position < length) {
+                int size = LoggerImpl.readInt(buf[0], position);
+                view.setStart(position + RECORD_HEADER_LENGTH);
+                view.setEnd(position + RECORD_HEADER_LENGTH + size);
+                if (!visitor.visit(base + position, view)) {
+                    stopped[0] = true;
+                    return false;
+                }
+                position += RECORD_HEADER_LENGTH + size;
+            }
+            return true;
+        });
+
+        if (rebuild && !stopped[0]) {
+            lock.lock();
+            try {
+                if (!indexed) {
+                    setEnd(end[0]);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void rewind() {
+        lock.lock();
+        try {
+            inner.rewind();
+            readLength = 0;
+            readPosition = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        Thread writer;
+        lock.lock();
+        try {
+            closed = true;
+            writer = asyncWriter;
+            asyncReady.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        lock.lock();
+        try {
+            if (used > 0) {
+                seal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        inner.close();
+        for (LogCodec c : codecs.values()) {
+            c.close();
+        }
+    }
+
+    /**
+     * 将一条日志放入当前块, 调用时需持有 lock
+     * @return 日志的 LSN
+     */
+    private long put(byte[] data, int offset, int length) {
+        long lsn = reserve(length);
+        System.arraycopy(data, offset, block, used, length);
+        used += length;
+        return lsn;
+    }
+
+    /**
+     * 在当前块中写入日志的长度, 空间不足时扩容(单条日志可以大于块大小)
+     * 调用时需持有 lock
+     * @return 日志的 LSN
+     */
+    private long reserve(int length) {
+        ensureIndex();
+        int need = used + RECORD_HEADER_LENGTH + length;
+        if (need > block.length) {
+            block = Arrays.copyOf(block, Math.max(need, block.length * 2));
+        }
+
+        long lsn = blockBase + used;
+        block[used] = (byte) (length >>> 24);
+        block[used + 1] = (byte) (length >>> 16);
+        block[used + 2] = (byte) (length >>> 8);
+        block[used + 3] = (byte) length;
+        used += RECORD_HEADER_LENGTH;
+        return lsn;
+    }
+
+    /**
+     * 封装当前块并写入底层日志(不等待落盘), 调用时需持有 lock
+     * @return 块的末尾
+     */
+    private long seal() {
+        long base = blockBase;
+        long end = base + used;
+        long innerLsn = inner.log(takeBlock(), false);
+        index.put(base, innerLsn);
+        unflushed.addLast(new long[]{innerLsn, end});
+        return end;
+    }
+
+    /**
+     * 压缩当前块并清空, blockBase 移到块末尾
+     * @return 块的完整内容
+     */
+    private byte[] takeBlock() {
+        byte[] compressed = codec.compress(block, 0, used);
+        byte codecId = codec.getId();
+        int length = compressed.length;
+        if (length >= used) {
+            compressed = block;
+            codecId = STORED;
+            length = used;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(BLOCK_HEADER_LENGTH + length);
+        buf.putLong(blockBase)
+                .put(codecId)
+                .putInt(used)
+                .putInt(Crc32c.compute(block, 0, used))
+                .put(compressed, 0, length);
+
+        blockBase += used;
+        used = 0;
+        if (block.length > blockSize) {
+            block = new byte[blockSize];
+        }
+        return buf.array();
+    }
+
+    /**
+     * 等待 end 之前的块落盘
+     * 底层日志按写入顺序落盘, 等待到底层队列末尾即包含这些块
+     */
+    private void waitDurable(long end) {
+        if (end <= durableEnd.get()) {
+            return;
+        }
+        inner.flush(Long.MAX_VALUE - 1);
+        durableEnd.accumulateAndGet(end, Math::max);
+    }
+
+    private int decode(byte[] raw, int start, int end) {
+        byte[][] buf = {readBuf};
+        int length = decode(raw, start, end, buf);
+        readBuf = buf[0];
+        return length;
+    }
+
+    /**
+     * 解压 raw[start, end) 中的块到 buf[0], 空间不足时替换为更大的数组
+     * @return 解压后的长度
+     */
+    private int decode(byte[] raw, int start, int end, byte[][] buf) {
+        byte codecId = raw[start + CODEC_OFFSET];
+        int length = LoggerImpl.readInt(raw, start + RAW_LENGTH_OFFSET);
+        int checksum = LoggerImpl.readInt(raw, start + RAW_CHECKSUM_OFFSET);
+        int dataStart = start + BLOCK_HEADER_LENGTH;
+        if (buf[0].length < length) {
+            buf[0] = new byte[length];
+        }
+
+        boolean ok;
+        if (codecId == STORED) {
+            ok = end - dataStart == length;
+            if (ok) {
+                System.arraycopy(raw, dataStart, buf[0], 0, length);
+            }
+        }
+        else {
+            LogCodec c = codecs.get(codecId);
+            ok = c != null && c.decompress(raw, dataStart, end - dataStart, buf[0], 0, length);
+        }
+
+        if (!ok || Crc32c.compute(buf[0], 0, length) != checksum) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return length;
+    }
+
+    private static long readLong(byte[] buf, int offset) {
+        return ((long) LoggerImpl.readInt(buf, offset) << 32) | (LoggerImpl.readInt(buf, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,121 @@
+package backend.dm.logger;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C 校验和
+ *
+ * JDK 9 及以上使用 java.util.zip.CRC32C(由 JVM 内联为硬件指令), 否则退化为查表实现
+ */
+class Crc32c {
+    // Castagnoli 多项式(反转)
+    private static final int POLY = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+    private static final Constructor<?> JDK_CRC32C;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+
+        Constructor<?> constructor = null;
+        try {
+            constructor = Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (ReflectiveOperationException e) {
+            // JDK 8, 使用查表实现
+        }
+        JDK_CRC32C = constructor;
+    }
+
+    private static final ThreadLocal<Checksum> LOCAL = ThreadLocal.withInitial(Crc32c::newChecksum);
+
+    /**
+     * 当前线程复用的 Checksum, 使用前需要 reset
+     */
+    static Checksum local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * 将 buf 的 position 到 limit 计入 checksum, 不移动 position
+     */
+    static void update(Checksum checksum, ByteBuffer buf) {
+        if (buf.hasArray()) {
+            checksum.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
+
+        for (int i = buf.position(); i < buf.limit(); i++) {
+            checksum.update(buf.get(i));
+        }
+    }
+
+    static Checksum newChecksum() {
+        if (JDK_CRC32C != null) {
+            try {
+                return (Checksum) JDK_CRC32C.newInstance();
+            } catch (ReflectiveOperationException e) {
+                // 退化为查表实现
+            }
+        }
+        return new TableChecksum();
+    }
+
+    /**
+     * 计算 buf[offset, offset + length) 的 CRC32C
+     */
+    static int compute(byte[] buf, int offset, int length) {
+        Checksum checksum = LOCAL.get();
+        checksum.reset();
+        checksum.update(buf, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 计算两段数据拼接后的 CRC32C
+     */
+    static int compute(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        Checksum checksum = LOCAL.get();
+        checksum.reset();
+        checksum.update(a, aOffset, aLength);
+        checksum.update(b, bOffset, bLength);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 查表实现, 每次处理一个字节
+     */
+    static class TableChecksum implements Checksum {
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off + len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package backend.dm.logger;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 使用 JDK 自带的 Deflate 压缩日志块
+ *
+ * Deflater / Inflater 持有 zlib 的本地内存, 用完放回空闲队列复用, 数量不超过同时压缩或解压的线程数;
+ * 不与线程绑定, 线程退出不会留下未释放的对象. close(日志关闭时)对空闲的对象调用 end 释放本地内存,
+ * 之后仍可使用, 新建的对象由下一次 close 释放
+ */
+public class DeflateCodec implements LogCodec {
+    public static final byte ID = 1;
+
+    private final int level;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int offset, int length) {
+        Deflater d = deflaters.poll();
+        if (d == null) {
+            d = new Deflater(level);
+        }
+        try {
+            d.reset();
+            d.setInput(src, offset, length);
+            d.finish();
+
+            byte[] out = new byte[length + (length >>> 3) + 64];
+            int size = 0;
+            while (!d.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                size += d.deflate(out, size, out.length - size);
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflaters.offer(d);
+        }
+    }
+
+    @Override
+    public boolean decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstLength) {
+        Inflater i = inflaters.poll();
+        if (i == null) {
+            i = new Inflater();
+        }
+        try {
+            i.reset();
+            i.setInput(src, offset, length);
+            int size = 0;
+            while (size < dstLength) {
+                int n = i.inflate(dst, dstOffset + size, dstLength - size);
+                if (n == 0 && (i.finished() || i.needsInput() || i.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            return size == dstLength && i.finished();
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflaters.offer(i);
+        }
+    }
+
+    /**
+     * 释放空闲的 Deflater / Inflater 的本地内存
+     */
+    @Override
+    public void close() {
+        Deflater d;
+        while ((d = deflaters.poll()) != null) {
+            d.end();
+        }
+        Inflater i;
+        while ((i = inflaters.poll()) != null) {
+            i.end();
+        }
+    }
+}
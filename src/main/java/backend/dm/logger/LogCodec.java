@@ -0,0 +1,27 @@
+package backend.dm.logger;
+
+/**
+ * 日志块的压缩算法, 由 CompressedLogger 使用
+ *
+ * id 写入每个块的描述信息中, 读取时按 id 选择算法, 同一个 id 只能对应一种编码格式
+ */
+public interface LogCodec {
+    byte getId();
+
+    /**
+     * 压缩 src[offset, offset + length)
+     * @return 压缩后的数据
+     */
+    byte[] compress(byte[] src, int offset, int length);
+
+    /**
+     * 解压到 dst[dstOffset, dstOffset + dstLength)
+     * @return 数据损坏或解压后的长度不等于 dstLength 时返回 false
+     */
+    boolean decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstLength);
+
+    /**
+     * 释放算法持有的资源, 日志关闭时调用
+     */
+    default void close() {}
+}
@@ -0,0 +1,15 @@
+package backend.dm.logger;
+
+import backend.common.SubArray;
+
+/**
+ * 顺序读取日志时的回调
+ */
+public interface LogVisitor {
+    /**
+     * @param lsn 日志的 LSN
+     * @param log 日志数据部分的视图, 指向重复使用的缓冲区, 只在本次调用期间有效
+     * @return 是否继续读取
+     */
+    boolean visit(long lsn, SubArray log);
+}
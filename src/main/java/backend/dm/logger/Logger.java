@@ -1,24 +1,24 @@
 package backend.dm.logger;
 
-
-import common.Error;
-import utils.Panic;
-import utils.Parser;
-
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 日志接口, 并提供两种方式创建日志
  */
 public interface Logger {
-    void log(byte[] data);
+    long log(byte[] data);                  // 返回日志的 LSN
+    long log(byte[] data, boolean sync);    // sync 为 false 时不等待落盘
+    long log(ByteBuffer... parts);          // 多段数据组成一条日志, 聚集写入, 返回时已落盘
+    CompletableFuture<Long> logAsync(byte[] data);    // 日志落盘后以 LSN 完成
+    void flush(long lsn);                   // 保证 LSN 不大于 lsn 的日志已落盘
+    long getFlushedLsn();                   // LSN 小于该值的日志都已落盘
+    void dropBefore(long lsn);              // lsn 之前的日志不再需要, 可以回收
     void truncate(long x) throws Exception;
     byte[] next();
+    void scan(LogVisitor visitor);          // 从头顺序读取全部日志, 不复制日志数据
+    void scan(long lsn, LogVisitor visitor);    // 从 lsn 处(日志的边界, 如某条日志的 LSN 或 getFlushedLsn 的返回值)开始顺序读取
     void rewind();
     void close();
 
@@ -29,64 +29,38 @@ public interface Logger {
      * @return
      */
     public static Logger create(String path) {
-        File file = new File(path + LoggerImpl.LOG_FILE_SUFFIX);
-        try {
-            if (!file.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        if (!file.canRead() || !file.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
+        return create(path, LoggerConfig.defaultConfig());
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.parseIntToBytes(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /**
+     * 按配置新建日志
+     * @param path
+     * @param config
+     * @return
+     */
+    public static Logger create(String path, LoggerConfig config) {
+        int version = config.isCompressed() ? LoggerImpl.VERSION_COMPRESSED : LoggerImpl.CURRENT_VERSION;
+        LoggerImpl logger = config.isSegmented()
+                ? SegmentedLogger.create(path, config.getSegmentSize(), version)
+                : LoggerImpl.createFile(path, version);
+        if (config.isCompressed()) {
+            return new CompressedLogger(logger, config.getBlockSize(), new DeflateCodec());
         }
-
-        return new LoggerImpl(raf, fc, 0);
+        return logger;
     }
 
+    /**
+     * 打开已有日志: 存在清单文件时为分段日志, 文件头为压缩日志的版本时包装为 CompressedLogger
+     * @param path
+     * @return
+     */
     public static Logger open(String path) {
-        File file = new File(path + LoggerImpl.LOG_FILE_SUFFIX);
-        if (!file.exists()) {
-            Panic.panic(Error.FileNotExistsException);
+        LoggerImpl logger = new File(path + SegmentedLogger.MANIFEST_SUFFIX).exists()
+                ? SegmentedLogger.load(path)
+                : LoggerImpl.openFile(path);
+        if (logger.isCompressed()) {
+            return new CompressedLogger(logger, CompressedLogger.DEFAULT_BLOCK_SIZE, new DeflateCodec());
         }
-
-        if (!file.canRead() || !file.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        LoggerImpl logger = new LoggerImpl(raf, fc);
-        logger.init();
-
         return logger;
     }
 }
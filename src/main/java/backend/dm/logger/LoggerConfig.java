@@ -0,0 +1,59 @@
+package backend.dm.logger;
+
+/**
+ * Logger 的可选配置
+ *
+ * 默认配置与原有行为一致: 单个日志文件
+ */
+public class LoggerConfig {
+    // 新建日志时使用分段日志, 打开已有日志时根据清单文件自动识别
+    private boolean segmented = false;
+    // 分段日志每个段的大小
+    private int segmentSize = SegmentedLogger.DEFAULT_SEGMENT_SIZE;
+    // 新建日志时使用块压缩(Deflate), 打开已有日志时根据文件头自动识别
+    private boolean compressed = false;
+    // 压缩块的大小
+    private int blockSize = CompressedLogger.DEFAULT_BLOCK_SIZE;
+
+    public static LoggerConfig defaultConfig() {
+        return new LoggerConfig();
+    }
+
+    public boolean isSegmented() {
+        return segmented;
+    }
+
+    public void setSegmented(boolean segmented) {
+        this.segmented = segmented;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0 || segmentSize % 512 != 0) {
+            throw new IllegalArgumentException("segmentSize must be a multiple of 512");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+}
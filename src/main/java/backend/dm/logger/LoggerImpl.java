@@ -1,28 +1,64 @@
 package backend.dm.logger;
 
+import backend.common.SubArray;
 import com.google.common.primitives.Bytes;
 import common.Error;
 import utils.Panic;
 import utils.Parser;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Checksum;
 
 /***
  * 操作日志文件
  *
- * 日志文件格式:  [XChecksum] [log1] [log2] ... [logN] [bad_tail]
+ * 日志文件格式:  [Header] [log1] [log2] ... [logN] [bad_tail]
+ *     - Header    ==> 版本 1(旧格式): [XChecksum]
+ *                     版本 2: [Magic] [Version] [XChecksum]
+ *                     版本 3: [Magic] [Version] [Reserved]
+ *                     版本 4: 与版本 3 相同, 日志为 CompressedLogger 的压缩块, 只能通过 CompressedLogger 读写
  *     - XChecksum ==> 所有日志的总校验和
  *     - bad_tail  ==> 数据库崩溃时，没有来得及写完的日志数据
  * 日志格式: [size] [checksum] [data]
  *     - size: 4 byte, int  ==> data length
  *     - checksum: 4 byte, int  ==> 单条日志的校验和
+ * 校验和: 版本 1 为逐字节的多项式累乘; 版本 2 为 data 的 CRC32C, XChecksum 是所有日志字节的 CRC32C;
+ *     版本 3, 4 为 size + data 的 CRC32C, 没有 XChecksum
+ * 新建的日志文件使用版本 3(压缩日志为版本 4), 打开时按文件头识别版本
+ *
+ * 版本 1, 2 打开时需要扫描整个文件校验 XChecksum 并截掉 bad_tail;
+ * 版本 3, 4 只依靠单条日志的校验和, 第一条校验失败的日志即为 bad_tail 的开始, 打开时不扫描:
+ * 恢复时 next() 读到结尾即确定文件尾, 在此之前写日志才需要单独扫描一次
+ *
+ * log(ByteBuffer...): 日志数据由多段组成, 校验和逐段计算, 与 8 字节的描述信息一起聚集写入, 不拼接数组;
+ *     调用者等待日志落盘后才返回, 返回后即可重用这些缓冲区
+ *
+ * 组提交: log 先把日志放入缓冲队列, 第一个需要落盘的调用者成为 leader,
+ * 取走队列中的全部日志, 一次聚集写入文件尾, 更新一次 XChecksum(版本 3 没有) 并 force 一次;
+ * leader 写盘期间到达的日志由下一个 leader 合并写入, 其余调用者等待自己的日志落盘即可返回
+ *
+ * LSN: 日志在文件中的起始偏移, 单调递增
+ * flushedLsn: 已落盘日志的末尾偏移, lsn < flushedLsn 的日志都已落盘
+ *
+ * 异步写: logAsync 把日志放入缓冲队列, 对应的 future 放入环形队列后立即返回,
+ * 由专门的写线程(第一次 logAsync 时启动)批量写盘并按 LSN 顺序完成 future
+ *
+ * scan: 顺序读入大块缓冲区, 在缓冲区中原地校验日志, 以 SubArray 视图交给 LogVisitor, 缓冲区重复使用
+ *
+ * 日志不在单个文件中时(见 SegmentedLogger), 子类覆盖 placeRecord / writeBatch / readLog 等方法,
+ * 组提交, LSN 与异步写仍由本类完成
  */
 public class LoggerImpl implements Logger{
     private static final int SEED = 13331;
@@ -34,6 +70,28 @@ public class LoggerImpl implements Logger{
 
     public static final String LOG_FILE_SUFFIX = ".log";
 
+    // 文件头
+    static final int LOG_MAGIC = 0x4D594C47;
+    static final int VERSION_LEGACY = 1;
+    static final int VERSION_CRC32C = 2;
+    static final int VERSION_RECORD_CRC = 3;
+    static final int VERSION_COMPRESSED = 4;
+    static final int CURRENT_VERSION = VERSION_RECORD_CRC;
+    private static final int LEGACY_HEADER_LENGTH = 4;
+    private static final int HEADER_LENGTH = 12;
+    private static final int HEADER_XCHECKSUM_OFFSET = 8;
+
+    // 不等待落盘的日志在缓冲队列中积累到该大小时, 由调用者负责写盘
+    private static final int MAX_PENDING_BYTES = 1 << 20;
+    // 未完成的异步日志最大数量, 超出时 logAsync 阻塞等待
+    private static final int ASYNC_RING_SIZE = 4096;
+    // scan 的读缓冲区大小, 日志更大时扩容
+    private static final int SCAN_BUFFER_SIZE = 1 << 20;
+
+    // log(ByteBuffer...) 使用的描述信息缓冲区, 调用返回时日志已写入, 可以重复使用
+    private static final ThreadLocal<ByteBuffer> RECORD_HEADER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(DATA_OFFSET));
+
     private RandomAccessFile raf;
     private FileChannel fc;
     private Lock lock;
@@ -41,24 +99,150 @@ public class LoggerImpl implements Logger{
     private long position;    // 当前日志指针的位置
     private long fileSize;    // 日志文件大小, 初始化时确定
     private int xChecksum;
+    private int version;
+    private int headerLength;             // 日志数据开始位置
+    private int xChecksumOffset;          // XChecksum 在文件中的位置
+    private Checksum xCrc;                // 版本 2 中 XChecksum 的累计状态
+    private boolean tailKnown;            // 是否已确定文件尾(有效日志的末尾), 由 lock 保护
+    private long tailOffset;
+
+    private Lock batchLock;               // 保护缓冲队列与序号
+    private Condition flushed;            // 一批日志落盘
+    private List<ByteBuffer[]> pending;   // 尚未写入文件的日志, 每条为 [size, checksum, data] 的若干段
+    private int pendingBytes;
+    private long appendedLsn;             // 已进入队列的日志末尾偏移, 即下一条日志的 LSN, 文件尾未知时为 -1
+    private volatile long flushedLsn;     // 已落盘的日志末尾偏移, 文件尾未知时为 -1
+    private boolean flushing;             // 是否有 leader 正在写盘
+
+    // 异步日志的环形队列, 按 LSN 升序
+    private long[] asyncLsns;
+    private long[] asyncEnds;             // 日志末尾偏移, flushedLsn 达到后即可完成
+    private CompletableFuture<Long>[] asyncFutures;
+    private int asyncHead;
+    private int asyncCount;
+    private Condition asyncReady;         // 环形队列非空
+    private Condition asyncNotFull;
+    private Thread asyncWriter;
+    private boolean closed;
 
     public LoggerImpl(RandomAccessFile raf, FileChannel fc) {
         this.raf = raf;
         this.fc = fc;
         this.lock = new ReentrantLock();
+        this.batchLock = new ReentrantLock();
+        this.flushed = batchLock.newCondition();
+        this.pending = new ArrayList<>();
+        this.asyncReady = batchLock.newCondition();
+        this.asyncNotFull = batchLock.newCondition();
     }
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.raf = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        this.lock = new ReentrantLock();
+    /**
+     * 供子类使用: 日志格式为版本 3 或 4, 文件尾延迟确定, 不调用 init
+     */
+    protected LoggerImpl(int version) {
+        this(null, null);
+        this.version = version;
+        this.appendedLsn = -1;
+        this.flushedLsn = -1;
     }
 
     /**
-     * 日志文件初始化
+     * 新建日志文件的文件头
+     * @return
+     */
+    static byte[] newHeader(int version) {
+        return Bytes.concat(Parser.parseIntToBytes(LOG_MAGIC), Parser.parseIntToBytes(version),
+                Parser.parseIntToBytes(0));
+    }
+
+    /**
+     * 新建指定版本的日志文件
+     * @param path
+     * @param version 版本 3 或 4
+     * @return
+     */
+    static LoggerImpl createFile(String path, int version) {
+        File file = new File(path + LOG_FILE_SUFFIX);
+        try {
+            if (!file.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        if (!file.canRead() || !file.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+
+        RandomAccessFile raf = null;
+        FileChannel fc = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(newHeader(version));
+        try {
+            fc.position(0);
+            fc.write(buf);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        LoggerImpl logger = new LoggerImpl(raf, fc);
+        logger.init(true);
+
+        return logger;
+    }
+
+    /**
+     * 打开已有日志文件, 压缩日志由调用者包装为 CompressedLogger
+     * @param path
+     * @return
+     */
+    static LoggerImpl openFile(String path) {
+        File file = new File(path + LOG_FILE_SUFFIX);
+        if (!file.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+
+        if (!file.canRead() || !file.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+
+        RandomAccessFile raf = null;
+        FileChannel fc = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+
+        LoggerImpl logger = new LoggerImpl(raf, fc);
+        logger.init(true);
+
+        return logger;
+    }
+
+    /**
+     * 日志文件初始化, 压缩日志(版本 4)不能直接读写
      */
     public void init() {
+        init(false);
+    }
+
+    /**
+     * 日志文件初始化
+     * @param acceptCompressed 是否接受压缩日志
+     */
+    void init(boolean acceptCompressed) {
         long size = 0;
         try {
             size = this.raf.length();
@@ -66,11 +250,11 @@ public class LoggerImpl implements Logger{
             e.printStackTrace();
         }
 
-        if (size < 4) {
+        if (size < LEGACY_HEADER_LENGTH) {
             Panic.panic(Error.BadLogFileException);
         }
 
-        ByteBuffer buf = ByteBuffer.allocate(4);
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, HEADER_LENGTH));
         try {
             fc.position(0);
             fc.read(buf);
@@ -78,58 +262,431 @@ public class LoggerImpl implements Logger{
             Panic.panic(e);
         }
 
-        int xChecksum = Parser.parseBytesToInt(buf.array());
+        byte[] header = buf.array();
+        if (header.length == HEADER_LENGTH && Parser.parseBytesToInt(Arrays.copyOfRange(header, 0, 4)) == LOG_MAGIC) {
+            this.version = Parser.parseBytesToInt(Arrays.copyOfRange(header, 4, 8));
+            if (version != VERSION_CRC32C && version != VERSION_RECORD_CRC
+                    && !(acceptCompressed && version == VERSION_COMPRESSED)) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            this.headerLength = HEADER_LENGTH;
+            this.xChecksumOffset = HEADER_XCHECKSUM_OFFSET;
+            this.xCrc = Crc32c.newChecksum();
+        }
+        else {
+            this.version = VERSION_LEGACY;
+            this.headerLength = LEGACY_HEADER_LENGTH;
+            this.xChecksumOffset = 0;
+        }
+
+        int xChecksum = Parser.parseBytesToInt(Arrays.copyOfRange(header, xChecksumOffset, xChecksumOffset + 4));
         this.fileSize = size;
         this.xChecksum = xChecksum;
 
-        checkAndRemoveTail();
+        if (version >= VERSION_RECORD_CRC) {
+            // 文件尾延迟到第一次需要时确定
+            this.appendedLsn = -1;
+            this.flushedLsn = -1;
+            rewind();
+        }
+        else {
+            checkAndRemoveTail();
+        }
+    }
+
+    int getVersion() {
+        return version;
     }
 
     /**
-     * 写入日志到文件
-     * @param data
+     * 是否为 CompressedLogger 的压缩日志
      */
+    boolean isCompressed() {
+        return version == VERSION_COMPRESSED;
+    }
+
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);    // 字节数组 ==> 缓冲区
+    public long getFlushedLsn() {
+        long lsn = flushedLsn;
+        if (lsn >= 0) {
+            return lsn;
+        }
+
+        batchLock.lock();
+        try {
+            ensureTail();
+            return flushedLsn;
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * 保证文件尾已确定, 未确定时扫描一遍日志并截掉 bad_tail
+     * 调用时需持有 batchLock
+     */
+    private void ensureTail() {
+        if (appendedLsn >= 0) {
+            return;
+        }
 
         lock.lock();
         try {
-            fc.position(fc.size());    // 定位到文件末尾
-            fc.write(buf);
+            if (!tailKnown) {
+                // 不影响正在进行的 next() 迭代
+                long saved = position;
+                rewind();
+                while (internNext() != null) {
+                }
+                long end = position;
+                position = saved;
+                removeTail(end);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        appendedLsn = tailOffset;
+        flushedLsn = tailOffset;
+    }
+
+    /**
+     * 确定文件尾为 end, 截掉之后的 bad_tail
+     * 调用时需持有 lock
+     * @param end
+     */
+    private void removeTail(long end) {
+        discardAfter(end);
+        tailOffset = end;
+        tailKnown = true;
+    }
 
-            updateXChecksum(log);
+    /**
+     * 丢弃 end 之后的数据, 防止新日志之后残留的旧数据被当作有效日志
+     * @param end
+     */
+    protected void discardAfter(long end) {
+        try {
+            if (fc.size() > end) {
+                fc.truncate(end);
+                fc.force(true);
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        }
+    }
+
+    /**
+     * 日志实际写入的位置, 子类可以跳过不能放下日志的区域
+     * @param lsn 队列末尾
+     * @param length 日志长度
+     * @return
+     */
+    protected long placeRecord(long lsn, int length) {
+        return lsn;
+    }
+
+    /**
+     * 写入日志到文件, 返回时日志已落盘
+     * @param data
+     * @return 日志的 LSN
+     */
+    @Override
+    public long log(byte[] data) {
+        return log(data, true);
+    }
+
+    /**
+     * 写入日志到文件
+     * @param data
+     * @param sync 是否等待日志落盘; 为 false 时日志随之后的某一批一起写入, 可通过 flush(lsn) 等待
+     * @return 日志的 LSN
+     */
+    @Override
+    public long log(byte[] data, boolean sync) {
+        if (sync) {
+            // 等待落盘时不需要复制数据
+            return log(ByteBuffer.wrap(data));
+        }
+
+        byte[] log = wrapLog(data);
+        return append(new ByteBuffer[]{ByteBuffer.wrap(log)}, log.length, sync);
+    }
+
+    /**
+     * 写入由多段数据组成的日志, 返回时日志已落盘
+     * 各段从 position 到 limit 的内容依次拼接为日志数据, 写入后 position 移动到 limit
+     * @param parts
+     * @return 日志的 LSN
+     */
+    @Override
+    public long log(ByteBuffer... parts) {
+        ByteBuffer[] record = new ByteBuffer[parts.length + 1];
+        int size = 0;
+        for (int i = 0; i < parts.length; i++) {
+            record[i + 1] = parts[i];
+            size += parts[i].remaining();
+        }
+
+        ByteBuffer header = RECORD_HEADER.get();
+        header.clear();
+        header.putInt(size).putInt(computeChecksum(size, parts)).flip();
+        record[0] = header;
+
+        return append(record, DATA_OFFSET + size, true);
+    }
+
+    /**
+     * 将一条日志加入缓冲队列
+     * @param record 组装好的日志 [size, checksum, data]
+     * @param length 日志总长度
+     * @param sync
+     * @return 日志的 LSN
+     */
+    private long append(ByteBuffer[] record, int length, boolean sync) {
+        batchLock.lock();
+        try {
+            ensureTail();
+            long lsn = placeRecord(appendedLsn, length);
+            pending.add(record);
+            pendingBytes += length;
+            appendedLsn = lsn + length;
+
+            if (sync || pendingBytes >= MAX_PENDING_BYTES) {
+                waitDurable(appendedLsn);
+            }
+            return lsn;
         } finally {
-            lock.unlock();
+            batchLock.unlock();
         }
     }
 
     /**
-     * 组装日志  [data] ==> [size, checksum, data]
+     * 异步写入日志, 立即返回; 日志落盘后 future 以日志的 LSN 完成
+     * 日志已关闭(写线程已退出)时 future 以 LogClosedException 完成
      * @param data
      * @return
      */
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.parseIntToBytes(computeChecksum(0, data));
-        byte[] size = Parser.parseIntToBytes(data.length);
+    @Override
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Long> logAsync(byte[] data) {
+        byte[] log = wrapLog(data);
+        CompletableFuture<Long> future = new CompletableFuture<>();
+
+        batchLock.lock();
+        try {
+            if (closed) {
+                future.completeExceptionally(Error.LogClosedException);
+                return future;
+            }
+            if (asyncWriter == null) {
+                asyncLsns = new long[ASYNC_RING_SIZE];
+                asyncEnds = new long[ASYNC_RING_SIZE];
+                asyncFutures = (CompletableFuture<Long>[]) new CompletableFuture<?>[ASYNC_RING_SIZE];
+                asyncWriter = new Thread(this::runAsyncWriter, "log-async-writer");
+                asyncWriter.setDaemon(true);
+                asyncWriter.start();
+            }
+            while (asyncCount == ASYNC_RING_SIZE && !closed) {
+                asyncNotFull.awaitUninterruptibly();
+            }
+            // 等待期间日志被关闭, 写线程处理完队列后不再取新的日志
+            if (closed) {
+                future.completeExceptionally(Error.LogClosedException);
+                return future;
+            }
+            ensureTail();
 
-        return Bytes.concat(size, checksum, data);
+            long lsn = placeRecord(appendedLsn, log.length);
+            pending.add(new ByteBuffer[]{ByteBuffer.wrap(log)});
+            pendingBytes += log.length;
+            appendedLsn = lsn + log.length;
+
+            int tail = (asyncHead + asyncCount) % ASYNC_RING_SIZE;
+            asyncLsns[tail] = lsn;
+            asyncEnds[tail] = appendedLsn;
+            asyncFutures[tail] = future;
+            asyncCount++;
+            asyncReady.signal();
+        } finally {
+            batchLock.unlock();
+        }
+
+        return future;
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = computeChecksum(this.xChecksum, log);
+    /**
+     * 异步写线程: 写入队列中的全部日志, 再完成已落盘的 future
+     */
+    private void runAsyncWriter() {
+        List<CompletableFuture<Long>> done = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        while (true) {
+            batchLock.lock();
+            try {
+                while (asyncCount == 0 && !closed) {
+                    asyncReady.awaitUninterruptibly();
+                }
+                if (asyncCount == 0) {
+                    return;
+                }
+
+                waitDurable(appendedLsn);
+
+                while (asyncCount > 0 && asyncEnds[asyncHead] <= flushedLsn) {
+                    done.add(asyncFutures[asyncHead]);
+                    lsns.add(asyncLsns[asyncHead]);
+                    asyncFutures[asyncHead] = null;
+                    asyncHead = (asyncHead + 1) % ASYNC_RING_SIZE;
+                    asyncCount--;
+                }
+                asyncNotFull.signalAll();
+            } finally {
+                batchLock.unlock();
+            }
+
+            // 在锁外完成 future, 避免回调持有 batchLock
+            for (int i = 0; i < done.size(); i++) {
+                done.get(i).complete(lsns.get(i));
+            }
+            done.clear();
+            lsns.clear();
+        }
+    }
+
+    /**
+     * 保证 LSN 为 lsn 的日志(及之前的日志)已落盘
+     * @param lsn
+     */
+    @Override
+    public void flush(long lsn) {
+        if (lsn >= 0 && lsn < flushedLsn) {
+            return;
+        }
+
+        batchLock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.parseIntToBytes(xChecksum)));
+            ensureTail();
+            // lsn 之后的日志与其同批写入, 等待到当前队列末尾即可
+            waitDurable(Math.min(lsn + 1, appendedLsn));
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * 等待 end 之前的日志落盘, 没有 leader 时自己成为 leader 写盘
+     * 调用时需持有 batchLock
+     * @param end
+     */
+    private void waitDurable(long end) {
+        while (flushedLsn < end) {
+            if (flushing) {
+                flushed.awaitUninterruptibly();
+                continue;
+            }
+
+            flushing = true;
+            List<ByteBuffer[]> batch = pending;
+            long batchStart = flushedLsn;
+            long batchEnd = appendedLsn;
+            pending = new ArrayList<>();
+            pendingBytes = 0;
+
+            // 写盘期间释放 batchLock, 其他线程可以继续加入队列
+            batchLock.unlock();
+            try {
+                writeBatch(batch, batchStart);
+            } finally {
+                batchLock.lock();
+                flushing = false;
+            }
+
+            flushedLsn = batchEnd;
+            flushed.signalAll();
+        }
+    }
+
+    /**
+     * 从 offset 处一次聚集写入一批日志, 更新 XChecksum 后 force 一次
+     * 同一时刻只有一个 leader 调用
+     * @param batch
+     * @param offset 队列中第一条日志放置(placeRecord)之前的位置
+     */
+    protected void writeBatch(List<ByteBuffer[]> batch, long offset) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<ByteBuffer> all = new ArrayList<>();
+        long remaining = 0;
+        for (ByteBuffer[] record : batch) {
+            for (ByteBuffer part : record) {
+                all.add(part);
+                remaining += part.remaining();
+            }
+        }
+        ByteBuffer[] bufs = all.toArray(new ByteBuffer[0]);
+
+        lock.lock();
+        try {
+            // 写入会移动 position, 先计算 XChecksum
+            if (version < VERSION_RECORD_CRC) {
+                for (ByteBuffer[] record : batch) {
+                    this.xChecksum = updateXChecksum(this.xChecksum, record);
+                }
+            }
+
+            fc.position(offset);    // 定位到文件末尾
+            while (remaining > 0) {
+                remaining -= fc.write(bufs);
+            }
+
+            if (version < VERSION_RECORD_CRC) {
+                fc.position(xChecksumOffset);
+                fc.write(ByteBuffer.wrap(Parser.parseIntToBytes(xChecksum)));
+            }
             fc.force(false);    // 强制将 FileChannel 中的数据写入磁盘
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected static int recordLength(ByteBuffer[] record) {
+        int length = 0;
+        for (ByteBuffer part : record) {
+            length += part.remaining();
+        }
+        return length;
+    }
+
+    /**
+     * 将缓冲队列中的日志全部落盘
+     */
+    private void flushPending() {
+        batchLock.lock();
+        try {
+            waitDurable(appendedLsn);
+        } finally {
+            batchLock.unlock();
         }
     }
 
+    /**
+     * 组装日志  [data] ==> [size, checksum, data]
+     * @param data
+     * @return
+     */
+    private byte[] wrapLog(byte[] data) {
+        ByteBuffer log = ByteBuffer.allocate(DATA_OFFSET + data.length);
+        log.putInt(data.length).putInt(0).put(data);
+
+        log.putInt(CHECKSUM_OFFSET, computeChecksum(log.array(), 0, data.length));
+        return log.array();
+    }
+
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
@@ -151,6 +708,10 @@ public class LoggerImpl implements Logger{
         try {
             byte[] log = internNext();
             if (log == null) {
+                // 从头读到第一条无效日志, 当前位置即为文件尾
+                if (!tailKnown) {
+                    removeTail(position);
+                }
                 return null;
             }
 
@@ -161,50 +722,251 @@ public class LoggerImpl implements Logger{
     }
 
     private byte[] internNext() {
+        byte[] log = readLog(position);
+        if (log == null) {
+            // 子类中日志可能跳过了一段区域
+            long next = nextRecordLsn(position);
+            if (next < 0 || (log = readLog(next)) == null) {
+                return null;
+            }
+            position = next;
+        }
+
+        position += log.length;
+        return log;
+    }
+
+    /**
+     * lsn 处没有有效日志时, 下一条日志可能开始的位置, 没有则返回 -1
+     * @param lsn
+     * @return
+     */
+    protected long nextRecordLsn(long lsn) {
+        return -1;
+    }
+
+    /**
+     * 读取 offset 处的一条完整日志, 校验失败时返回 null
+     * @param offset
+     * @return
+     */
+    protected byte[] readLog(long offset) {
         // 指针已经到文件尾部, 或者到最后一条未写完的日志
-        if (position + DATA_OFFSET >= fileSize) {
+        if (offset + DATA_OFFSET >= fileSize) {
             return null;
         }
 
         // 申请一个 4 字节的缓冲区
         ByteBuffer tmp = ByteBuffer.allocate(4);
         try {
-            fc.position(position);
+            fc.position(offset);
             fc.read(tmp);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
         int size = Parser.parseBytesToInt(tmp.array());
-        if (position + size + DATA_OFFSET > fileSize) {
+        if (size < 0 || offset + size + DATA_OFFSET > fileSize) {
             return null;
         }
 
         ByteBuffer buf = ByteBuffer.allocate(DATA_OFFSET + size);    // data length + 8 bytes
         try {
-            fc.position(position);
+            fc.position(offset);
             fc.read(buf);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
         byte[] log = buf.array();
-        int checksumCurrent = computeChecksum(0, Arrays.copyOfRange(log, DATA_OFFSET, log.length));
-        int checksumOrigin = Parser.parseBytesToInt(Arrays.copyOfRange(log, CHECKSUM_OFFSET, DATA_OFFSET));
-        if (checksumCurrent != checksumOrigin) {
+        if (!verifyRecord(log, 0, size, offset)) {
             return null;
         }
 
-        position += log.length;
         return log;
     }
 
+    /**
+     * 从头顺序读取全部日志, 每条日志的数据部分以视图的形式交给 visitor
+     * 视图指向重复使用的缓冲区, 只在 visit 调用期间有效
+     * @param visitor
+     */
+    @Override
+    public void scan(LogVisitor visitor) {
+        scan(firstRecordLsn(), visitor);
+    }
+
+    /**
+     * 从 lsn 处开始顺序读取日志, lsn 需要是日志的边界
+     * @param lsn
+     * @param visitor
+     */
+    @Override
+    public void scan(long lsn, LogVisitor visitor) {
+        ScanBuffer window = new ScanBuffer();
+        SubArray view = new SubArray(null, 0, 0);
+
+        lsn = alignRecordLsn(lsn);
+        while (true) {
+            int offset = locate(window, lsn);
+            if (offset < 0) {
+                long next = nextRecordLsn(lsn);
+                if (next < 0 || (offset = locate(window, next)) < 0) {
+                    break;
+                }
+                lsn = next;
+            }
+
+            int size = readInt(window.buf, offset + SIZE_OFFSET);
+            view.setArray(window.buf);
+            view.setStart(offset + DATA_OFFSET);
+            view.setEnd(offset + DATA_OFFSET + size);
+            if (!visitor.visit(lsn, view)) {
+                return;
+            }
+            lsn += DATA_OFFSET + size;
+        }
+
+        // 从头读到第一条无效日志, 当前位置即为文件尾
+        lock.lock();
+        try {
+            if (!tailKnown) {
+                removeTail(lsn);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在缓冲区中定位 lsn 处的日志并校验
+     * @return 日志在缓冲区中的偏移, 没有有效日志时返回 -1
+     */
+    private int locate(ScanBuffer window, long lsn) {
+        int offset = window.get(lsn, DATA_OFFSET);
+        if (offset < 0) {
+            return -1;
+        }
+
+        // 长度可能来自写了一半或残留的数据, 超出缓冲区时先检查不超过文件(段)尾, 避免溢出和申请过大的缓冲区
+        int size = readInt(window.buf, offset + SIZE_OFFSET);
+        long end = lsn + DATA_OFFSET + (long) size;
+        if (size < 0 || (end > window.bufLsn + window.limit && end > recordLimit(lsn))) {
+            return -1;
+        }
+        if ((offset = window.get(lsn, DATA_OFFSET + size)) < 0) {
+            return -1;
+        }
+
+        return verifyRecord(window.buf, offset, size, lsn) ? offset : -1;
+    }
+
+    /**
+     * scan 使用的读缓冲区, buf[0, limit) 对应日志 [bufLsn, bufLsn + limit)
+     */
+    private class ScanBuffer {
+        byte[] buf = new byte[SCAN_BUFFER_SIZE];
+        long bufLsn;
+        int limit;
+
+        /**
+         * 保证 [lsn, lsn + length) 在缓冲区中, 不够时保留已读的部分并继续读入
+         * @return lsn 在缓冲区中的偏移, 数据不足时返回 -1
+         */
+        int get(long lsn, int length) {
+            if (lsn >= bufLsn && lsn + length <= bufLsn + limit) {
+                return (int) (lsn - bufLsn);
+            }
+
+            int keep = 0;
+            if (lsn >= bufLsn && lsn < bufLsn + limit) {
+                keep = (int) (bufLsn + limit - lsn);
+            }
+            byte[] target = length > buf.length ? new byte[Math.max(length, buf.length * 2)] : buf;
+            System.arraycopy(buf, limit - keep, target, 0, keep);
+            buf = target;
+            bufLsn = lsn;
+            limit = keep;
+
+            int read = readAt(lsn + limit, buf, limit, buf.length - limit);
+            if (read > 0) {
+                limit += read;
+            }
+            return length <= limit ? 0 : -1;
+        }
+    }
+
+    /**
+     * lsn 处开始的日志不能超过的位置, 即当前的文件尾
+     * @param lsn
+     * @return
+     */
+    protected long recordLimit(long lsn) {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return -1;
+    }
+
+    /**
+     * 从 lsn 处读取连续的日志数据, 读到文件尾(或段尾)为止
+     * @return 读取的字节数, 没有数据时返回 -1
+     */
+    protected int readAt(long lsn, byte[] dst, int offset, int length) {
+        ByteBuffer buf = ByteBuffer.wrap(dst, offset, length);
+        try {
+            while (buf.hasRemaining() && fc.read(buf, lsn + buf.position() - offset) > 0) {
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        int read = buf.position() - offset;
+        return read > 0 ? read : -1;
+    }
+
+    /**
+     * 校验 buf[offset] 开始的一条日志
+     * @param buf
+     * @param offset 日志开始位置
+     * @param size 数据长度
+     * @param lsn 日志的 LSN
+     * @return
+     */
+    protected boolean verifyRecord(byte[] buf, int offset, int size, long lsn) {
+        return computeChecksum(buf, offset, size) == readInt(buf, offset + CHECKSUM_OFFSET);
+    }
+
+    protected static int readInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16)
+                | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+    }
+
     /**
      * 回到日志数据开始位置
      */
     @Override
     public void rewind() {
-        this.position = 4;
+        this.position = firstRecordLsn();
+    }
+
+    /**
+     * 日志边界 lsn 处的下一条日志可能开始的位置
+     * @param lsn
+     * @return
+     */
+    protected long alignRecordLsn(long lsn) {
+        return Math.max(lsn, firstRecordLsn());
+    }
+
+    /**
+     * 第一条日志的位置
+     * @return
+     */
+    protected long firstRecordLsn() {
+        return headerLength;
     }
 
     /**
@@ -221,7 +983,7 @@ public class LoggerImpl implements Logger{
                 break;
             }
 
-            xCheck = computeChecksum(xCheck, log);
+            xCheck = updateXChecksum(xCheck, log);
         }
 
         if (xCheck != xChecksum) {
@@ -240,20 +1002,122 @@ public class LoggerImpl implements Logger{
         } catch (Exception e) {
             Panic.panic(e);
         }
+        this.tailOffset = position;
+        this.tailKnown = true;
+        this.appendedLsn = position;
+        this.flushedLsn = position;
 
         rewind();
     }
 
     /**
-     * 计算单挑日志的 checksum
+     * 计算单条日志的 checksum
+     * @param buf
+     * @param offset 日志 [size, checksum, data] 的开始位置
+     * @param length 数据长度
+     * @return
+     */
+    protected int computeChecksum(byte[] buf, int offset, int length) {
+        if (version >= VERSION_RECORD_CRC) {
+            // size 也计入校验和, 写了一半的 size 不会被当作有效日志
+            return Crc32c.compute(buf, offset + SIZE_OFFSET, CHECKSUM_OFFSET, buf, offset + DATA_OFFSET, length);
+        }
+        if (version == VERSION_CRC32C) {
+            return Crc32c.compute(buf, offset + DATA_OFFSET, length);
+        }
+
+        return computeChecksum(0, buf, offset + DATA_OFFSET, length);
+    }
+
+    /**
+     * 计算由多段数据组成的日志的 checksum, 不移动各段的 position
+     * @param size 数据长度
+     * @param parts
+     * @return
+     */
+    protected int computeChecksum(int size, ByteBuffer[] parts) {
+        if (version == VERSION_LEGACY) {
+            int xCheck = 0;
+            for (ByteBuffer part : parts) {
+                xCheck = computeChecksum(xCheck, part);
+            }
+            return xCheck;
+        }
+
+        Checksum checksum = Crc32c.local();
+        checksum.reset();
+        if (version >= VERSION_RECORD_CRC) {
+            checksum.update(size >>> 24);
+            checksum.update(size >>> 16);
+            checksum.update(size >>> 8);
+            checksum.update(size);
+        }
+        for (ByteBuffer part : parts) {
+            Crc32c.update(checksum, part);
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 将一条完整的日志计入 XChecksum, 不移动各段的 position
+     * @param xCheck
+     * @param record
+     * @return
+     */
+    private int updateXChecksum(int xCheck, ByteBuffer[] record) {
+        for (ByteBuffer part : record) {
+            if (version == VERSION_CRC32C) {
+                Crc32c.update(xCrc, part);
+                xCheck = (int) xCrc.getValue();
+            }
+            else {
+                xCheck = computeChecksum(xCheck, part);
+            }
+        }
+        return xCheck;
+    }
+
+    /**
+     * 旧格式的校验和
+     * @param xCheck
+     * @param buf
+     * @return
+     */
+    private int computeChecksum(int xCheck, ByteBuffer buf) {
+        for (int i = buf.position(); i < buf.limit(); i++) {
+            xCheck = xCheck * SEED + buf.get(i);
+        }
+
+        return xCheck;
+    }
+
+    /**
+     * 将一条完整的日志计入 XChecksum
      * @param xCheck
      * @param log
      * @return
      */
-    private int computeChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
+    private int updateXChecksum(int xCheck, byte[] log) {
+        if (version == VERSION_CRC32C) {
+            xCrc.update(log, 0, log.length);
+            return (int) xCrc.getValue();
+        }
+
+        return computeChecksum(xCheck, log, 0, log.length);
+    }
+
+    /**
+     * 旧格式的校验和
+     * @param xCheck
+     * @param buf
+     * @param offset
+     * @param length
+     * @return
+     */
+    private int computeChecksum(int xCheck, byte[] buf, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
             // 计算会溢出, 但可以正常校验
-            xCheck = xCheck * SEED + b;
+            xCheck = xCheck * SEED + buf[i];
         }
 
         return xCheck;
@@ -261,6 +1125,30 @@ public class LoggerImpl implements Logger{
 
     @Override
     public void close() {
+        Thread writer;
+        batchLock.lock();
+        try {
+            closed = true;
+            writer = asyncWriter;
+            asyncReady.signalAll();
+        } finally {
+            batchLock.unlock();
+        }
+
+        // 写线程处理完剩余的异步日志后退出
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        flushPending();
+        closeFiles();
+    }
+
+    protected void closeFiles() {
         try {
             this.fc.close();
             this.raf.close();
@@ -268,4 +1156,12 @@ public class LoggerImpl implements Logger{
             Panic.panic(e);
         }
     }
+
+    /**
+     * 单个文件的日志不能丢弃头部
+     * @param lsn
+     */
+    @Override
+    public void dropBefore(long lsn) {
+    }
 }
@@ -0,0 +1,678 @@
+package backend.dm.logger;
+
+import common.Error;
+import utils.FileUtil;
+import utils.Panic;
+import utils.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分段日志: 日志由固定大小的段文件组成, LSN 是日志在整个日志流中的偏移
+ *
+ * 段文件: [path].[base].seg, base 为段中第一个字节的 LSN, 是段大小的整数倍
+ *     段格式: [Magic] [Version] [base] [log1] [log2] ... [padding]
+ *     日志格式与 LoggerImpl 版本 3 相同, 但 checksum 异或了由 base 得到的盐值,
+ *     回收的段文件改名后, 残留的旧日志不能通过校验
+ *     一条日志不跨段, 放不下时从下一个段开始, 剩余部分作为 padding
+ * 清单文件: [path].manifest, [Magic] [Version] [段大小] [firstLsn] [checksum], 通过临时文件原子替换
+ *
+ * 段文件在使用前写满 0 并 force, 写日志时不再扩展文件; 开始写入一个段时由后台线程准备好下一个段
+ * dropBefore 将不再需要的段移出清单后, 改名为新的预分配段重复使用, 预分配段足够时直接删除
+ * 创建、改名与删除文件之后同步所在目录
+ *
+ * 一批日志跨段时, 前一个段 force 之后才写下一个段:
+ * 下一个段的第一条日志有效, 说明前一个段已经完整, 读到前一个段的无效日志时可以跳到下一个段
+ * 同一个段中每写入 MAX_UNSYNCED 字节 force 一次, 崩溃时没有落盘的数据只可能在文件尾之后的这一范围内,
+ * 打开时只需清除这一范围, 不必写满整个段的剩余部分
+ */
+public class SegmentedLogger extends LoggerImpl {
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String MANIFEST_SUFFIX = ".manifest";
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int SEGMENT_HEADER_LENGTH = 16;
+    private static final int MANIFEST_LENGTH = 24;
+    // 当前段之后最多保留的预分配段
+    private static final int MAX_PREALLOCATED = 2;
+    private static final int ZERO_CHUNK = 64 * 1024;
+    // 同一个段中两次 force 之间最多写入的字节数(单条日志更大时除外)
+    private static final int MAX_UNSYNCED = 1 << 20;
+
+    private String path;
+    private int segmentSize;
+    private volatile long firstLsn;       // 最早的段的 base
+
+    private Lock segmentLock;             // 保护 segments
+    private TreeMap<Long, FileChannel> segments;
+    private volatile long writeBase;      // 正在写入的段
+    private Lock prepareLock;             // 串行化段文件的创建与改名, 在 segmentLock 之前获取
+    private ExecutorService preallocator; // 准备下一个段的后台线程
+
+    private SegmentedLogger(String path, int segmentSize, long firstLsn, int version) {
+        super(version);
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.firstLsn = firstLsn;
+        this.writeBase = firstLsn;
+        this.segmentLock = new ReentrantLock();
+        this.segments = new TreeMap<>();
+        this.prepareLock = new ReentrantLock();
+        this.preallocator = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "log-preallocate");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 新建分段日志
+     * @param path
+     * @param segmentSize 段大小
+     * @return
+     */
+    public static SegmentedLogger create(String path, int segmentSize) {
+        return create(path, segmentSize, CURRENT_VERSION);
+    }
+
+    /**
+     * 新建指定版本的分段日志
+     * @param version 版本 3 或 4(压缩日志)
+     */
+    static SegmentedLogger create(String path, int segmentSize, int version) {
+        if (segmentSize < SEGMENT_HEADER_LENGTH + LoggerImpl.DATA_OFFSET + 1 || segmentSize % 512 != 0) {
+            throw new IllegalArgumentException("segmentSize must be a multiple of 512");
+        }
+
+        File manifest = new File(path + MANIFEST_SUFFIX);
+        if (manifest.exists()) {
+            Panic.panic(Error.FileExistsException);
+        }
+
+        SegmentedLogger logger = new SegmentedLogger(path, segmentSize, 0, version);
+        logger.writeManifest(0);
+        logger.prepareSegment(0);
+        logger.preallocate(segmentSize);
+
+        return logger;
+    }
+
+    /**
+     * 打开分段日志, 不扫描日志, 文件尾在恢复读到结尾或第一次写日志时确定
+     * 压缩日志只能通过 Logger.open 打开
+     * @param path
+     * @return
+     */
+    public static SegmentedLogger open(String path) {
+        SegmentedLogger logger = load(path);
+        if (logger.isCompressed()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return logger;
+    }
+
+    /**
+     * 打开版本 3 或 4 的分段日志
+     * @param path
+     * @return
+     */
+    static SegmentedLogger load(String path) {
+        File manifest = new File(path + MANIFEST_SUFFIX);
+        if (!manifest.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(manifest.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        int version = raw.length == MANIFEST_LENGTH ? buf.getInt(4) : 0;
+        if (raw.length != MANIFEST_LENGTH || buf.getInt(0) != LOG_MAGIC
+                || (version != VERSION_RECORD_CRC && version != VERSION_COMPRESSED)
+                || buf.getInt(20) != Crc32c.compute(raw, 0, 20)) {
+            Panic.panic(Error.BadLogFileException);
+        }
+
+        SegmentedLogger logger = new SegmentedLogger(path, buf.getInt(8), buf.getLong(12), version);
+        logger.loadSegments();
+        return logger;
+    }
+
+    /**
+     * 原子替换清单文件
+     * @param first
+     */
+    private void writeManifest(long first) {
+        ByteBuffer buf = ByteBuffer.allocate(MANIFEST_LENGTH);
+        buf.putInt(LOG_MAGIC).putInt(getVersion()).putInt(segmentSize).putLong(first);
+        buf.putInt(Crc32c.compute(buf.array(), 0, 20));
+
+        File manifest = new File(path + MANIFEST_SUFFIX);
+        File tmp = new File(path + MANIFEST_SUFFIX + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.write(buf.array());
+            raf.getChannel().force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        try {
+            Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        syncDirectory();
+    }
+
+    private void syncDirectory() {
+        FileUtil.syncDirectory(new File(path).getAbsoluteFile().getParentFile());
+    }
+
+    private File segmentFile(long base) {
+        return new File(String.format("%s.%016x%s", path, base, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * 打开所有段文件, 删除清单之前的段和文件头不一致的段(改名后未写完文件头)
+     */
+    private void loadSegments() {
+        File f = new File(path).getAbsoluteFile();
+        String prefix = f.getName() + ".";
+        File[] files = f.getParentFile().listFiles((dir, name) -> name.startsWith(prefix)
+                && name.endsWith(SEGMENT_SUFFIX) && name.length() == prefix.length() + 16 + SEGMENT_SUFFIX.length());
+        if (files == null) {
+            return;
+        }
+
+        boolean deleted = false;
+        segmentLock.lock();
+        try {
+            for (File file : files) {
+                String name = file.getName();
+                long base;
+                try {
+                    base = Long.parseUnsignedLong(name.substring(prefix.length(), prefix.length() + 16), 16);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                FileChannel channel = base >= firstLsn ? openSegment(file, base) : null;
+                if (channel == null) {
+                    deleteFile(file);
+                    deleted = true;
+                    continue;
+                }
+                segments.put(base, channel);
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+        if (deleted) {
+            syncDirectory();
+        }
+    }
+
+    /**
+     * 打开段文件并校验文件头, 不一致时返回 null
+     */
+    private FileChannel openSegment(File file, long base) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            }
+            if (channel.size() != segmentSize || header.getInt(0) != LOG_MAGIC
+                    || header.getInt(4) != getVersion() || header.getLong(8) != base) {
+                channel.close();
+                return null;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return channel;
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
+
+    private void writeSegmentHeader(FileChannel channel, long base) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+        header.putInt(LOG_MAGIC).putInt(getVersion()).putLong(base);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * 准备 base 开始的段: 已存在时直接返回, 否则新建并写满 0
+     * 写满 0 时不持有 segmentLock, 文件头最后写入, 崩溃时残留的不完整文件在打开时删除
+     * @param base
+     * @return
+     */
+    private FileChannel prepareSegment(long base) {
+        prepareLock.lock();
+        try {
+            FileChannel channel = getSegment(base);
+            if (channel != null) {
+                return channel;
+            }
+
+            try {
+                channel = new RandomAccessFile(segmentFile(base), "rw").getChannel();
+                writeZeros(channel, 0, segmentSize);
+                writeSegmentHeader(channel, base);
+                channel.force(true);    // 文件大小也要落盘
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            syncDirectory();
+
+            segmentLock.lock();
+            try {
+                segments.put(base, channel);
+            } finally {
+                segmentLock.unlock();
+            }
+            return channel;
+        } finally {
+            prepareLock.unlock();
+        }
+    }
+
+    /**
+     * 由后台线程准备 base 开始的段, 写到该段时通常已经准备好
+     * @param base
+     */
+    private void preallocate(long base) {
+        try {
+            preallocator.execute(() -> prepareSegment(base));
+        } catch (RejectedExecutionException e) {
+            // 已关闭
+        }
+    }
+
+    private static void writeZeros(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+        for (long pos = from; pos < to; pos += ZERO_CHUNK) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_CHUNK, to - pos));
+            while (zeros.hasRemaining()) {
+                channel.write(zeros, pos + zeros.position());
+            }
+        }
+    }
+
+    private FileChannel getSegment(long base) {
+        segmentLock.lock();
+        try {
+            return segments.get(base);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    private long baseOf(long lsn) {
+        return lsn - lsn % segmentSize;
+    }
+
+    /**
+     * 由段的 base 得到的盐值
+     * @param base
+     * @return
+     */
+    private static int salt(long base) {
+        long h = base * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    protected long firstRecordLsn() {
+        return firstLsn + SEGMENT_HEADER_LENGTH;
+    }
+
+    /**
+     * 恰好位于段的开头时, 下一条日志在段的文件头之后
+     */
+    @Override
+    protected long alignRecordLsn(long lsn) {
+        lsn = Math.max(lsn, firstRecordLsn());
+        return lsn - baseOf(lsn) < SEGMENT_HEADER_LENGTH ? baseOf(lsn) + SEGMENT_HEADER_LENGTH : lsn;
+    }
+
+    @Override
+    protected long placeRecord(long lsn, int length) {
+        if (length > segmentSize - SEGMENT_HEADER_LENGTH) {
+            Panic.panic(Error.DataTooLargeException);
+        }
+
+        long offset = lsn % segmentSize;
+        if (offset < SEGMENT_HEADER_LENGTH) {
+            return lsn - offset + SEGMENT_HEADER_LENGTH;
+        }
+        if (offset + length > segmentSize) {
+            return lsn - offset + segmentSize + SEGMENT_HEADER_LENGTH;
+        }
+        return lsn;
+    }
+
+    @Override
+    protected void writeBatch(List<ByteBuffer[]> batch, long offset) {
+        long lsn = offset;
+        int i = 0;
+        try {
+            while (i < batch.size()) {
+                long start = placeRecord(lsn, recordLength(batch.get(i)));
+                long base = baseOf(start);
+                int salt = salt(base);
+
+                // 收集落在同一个段中的日志, 不超过 MAX_UNSYNCED
+                List<ByteBuffer> bufs = new ArrayList<>();
+                long end = start;
+                while (i < batch.size()) {
+                    ByteBuffer[] record = batch.get(i);
+                    int length = recordLength(record);
+                    long placed = placeRecord(end, length);
+                    if (baseOf(placed) != base || (end > start && placed + length - start > MAX_UNSYNCED)) {
+                        break;
+                    }
+
+                    // 描述信息在第一段中
+                    ByteBuffer header = record[0];
+                    int checksumPos = header.position() + CHECKSUM_OFFSET;
+                    header.putInt(checksumPos, header.getInt(checksumPos) ^ salt);
+                    Collections.addAll(bufs, record);
+                    end = placed + length;
+                    i++;
+                }
+
+                // 下一个段通常已由后台线程准备好
+                FileChannel channel = prepareSegment(base);
+                if (base != writeBase) {
+                    writeBase = base;
+                    preallocate(base + segmentSize);
+                }
+
+                ByteBuffer[] array = bufs.toArray(new ByteBuffer[0]);
+                long remaining = end - start;
+                channel.position(start - base);
+                while (remaining > 0) {
+                    remaining -= channel.write(array);
+                }
+                // 写下一个段之前先保证这个段落盘
+                channel.force(false);
+                lsn = end;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    protected byte[] readLog(long lsn) {
+        long base = baseOf(lsn);
+        long offset = lsn - base;
+        FileChannel channel = getSegment(base);
+        if (channel == null || offset < SEGMENT_HEADER_LENGTH || offset + DATA_OFFSET > segmentSize) {
+            return null;
+        }
+
+        try {
+            ByteBuffer tmp = ByteBuffer.allocate(4);
+            channel.read(tmp, offset);
+            int size = Parser.parseBytesToInt(tmp.array());
+            if (size < 0 || offset + DATA_OFFSET + size > segmentSize) {
+                return null;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(DATA_OFFSET + size);
+            while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) >= 0) {
+            }
+
+            byte[] log = buf.array();
+            return verifyRecord(log, 0, size, lsn) ? log : null;
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean verifyRecord(byte[] buf, int offset, int size, long lsn) {
+        int checksum = computeChecksum(buf, offset, size) ^ salt(baseOf(lsn));
+        return checksum == readInt(buf, offset + CHECKSUM_OFFSET);
+    }
+
+    /**
+     * 日志不跨段, 不能超过 lsn 所在段的末尾
+     */
+    @Override
+    protected long recordLimit(long lsn) {
+        return baseOf(lsn) + segmentSize;
+    }
+
+    /**
+     * 读取不超过 lsn 所在段的末尾
+     */
+    @Override
+    protected int readAt(long lsn, byte[] dst, int offset, int length) {
+        long base = baseOf(lsn);
+        FileChannel channel = getSegment(base);
+        if (channel == null) {
+            return -1;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(dst, offset, (int) Math.min(length, base + segmentSize - lsn));
+        try {
+            while (buf.hasRemaining() && channel.read(buf, lsn - base + buf.position() - offset) > 0) {
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        int read = buf.position() - offset;
+        return read > 0 ? read : -1;
+    }
+
+    /**
+     * 下一个段存在时, 日志可能从下一个段开始
+     */
+    @Override
+    protected long nextRecordLsn(long lsn) {
+        long next = baseOf(lsn) + segmentSize;
+        return getSegment(next) != null ? next + SEGMENT_HEADER_LENGTH : -1;
+    }
+
+    /**
+     * 文件尾确定为 end: 清除 end 之后可能没有落盘完整的日志, 保留之后的预分配段
+     *
+     * 崩溃时没有落盘的数据从 end 开始不超过 MAX_UNSYNCED(或一条更大的日志);
+     * 若前一个段已经写完并落盘, 也可能在下一个段的开头. 只将这两处不为 0 的部分写 0
+     */
+    @Override
+    protected void discardAfter(long end) {
+        long base = baseOf(end);
+        try {
+            FileChannel channel = getSegment(base);
+            if (channel != null) {
+                clearUnsynced(channel, Math.max(end - base, SEGMENT_HEADER_LENGTH));
+            }
+            FileChannel next = getSegment(base + segmentSize);
+            if (next != null) {
+                clearUnsynced(next, SEGMENT_HEADER_LENGTH);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        writeBase = base;
+        preallocate(base + segmentSize);
+    }
+
+    /**
+     * 将段中 offset 之后可能没有落盘的范围内不为 0 的部分写 0
+     */
+    private void clearUnsynced(FileChannel channel, long offset) throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(4);
+        channel.read(size, offset);
+        long length = size.getInt(0) > 0 ? DATA_OFFSET + (long) size.getInt(0) : 0;
+        long limit = Math.min(segmentSize, offset + Math.max(MAX_UNSYNCED, length));
+
+        boolean written = false;
+        ByteBuffer buf = ByteBuffer.allocate(ZERO_CHUNK);
+        for (long pos = offset; pos < limit; pos += ZERO_CHUNK) {
+            buf.clear();
+            buf.limit((int) Math.min(ZERO_CHUNK, limit - pos));
+            while (buf.hasRemaining() && channel.read(buf, pos + buf.position()) > 0) {
+            }
+            if (!isZero(buf.array(), buf.position())) {
+                writeZeros(channel, pos, pos + buf.position());
+                written = true;
+            }
+        }
+        if (written) {
+            channel.force(false);
+        }
+    }
+
+    private static boolean isZero(byte[] buf, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buf[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 截断到 x: 将 x 所在段的剩余部分写 0, 删除之后的段
+     * @param x
+     */
+    @Override
+    public void truncate(long x) throws Exception {
+        long base = baseOf(x);
+        prepareLock.lock();
+        segmentLock.lock();
+        try {
+            FileChannel channel = segments.get(base);
+            if (channel != null) {
+                writeZeros(channel, Math.max(x - base, SEGMENT_HEADER_LENGTH), segmentSize);
+                channel.force(false);
+            }
+
+            Map<Long, FileChannel> later = segments.tailMap(base, false);
+            for (Map.Entry<Long, FileChannel> entry : later.entrySet()) {
+                entry.getValue().close();
+                deleteFile(segmentFile(entry.getKey()));
+            }
+            later.clear();
+            syncDirectory();
+            writeBase = base;
+        } finally {
+            segmentLock.unlock();
+            prepareLock.unlock();
+        }
+    }
+
+    /**
+     * 回收 lsn 所在段之前的段
+     * 先更新清单, 再把旧段改名为新的预分配段(写入新的文件头), 预分配段足够时直接删除
+     * @param lsn
+     */
+    @Override
+    public void dropBefore(long lsn) {
+        // 不能回收正在写入的段
+        long first = Math.min(baseOf(lsn), baseOf(getFlushedLsn()));
+        if (first <= firstLsn) {
+            return;
+        }
+
+        prepareLock.lock();
+        segmentLock.lock();
+        try {
+            writeManifest(first);
+            firstLsn = first;
+
+            Map<Long, FileChannel> obsolete = new TreeMap<>(segments.headMap(first, false));
+            segments.headMap(first, false).clear();
+            for (Map.Entry<Long, FileChannel> entry : obsolete.entrySet()) {
+                entry.getValue().close();
+                File file = segmentFile(entry.getKey());
+
+                long last = segments.lastKey();
+                if (last - Math.max(writeBase, first) >= (long) MAX_PREALLOCATED * segmentSize) {
+                    deleteFile(file);
+                    continue;
+                }
+
+                long base = last + segmentSize;
+                File target = segmentFile(base);
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                FileChannel channel = new RandomAccessFile(target, "rw").getChannel();
+                writeSegmentHeader(channel, base);
+                channel.force(false);
+                segments.put(base, channel);
+            }
+            syncDirectory();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            segmentLock.unlock();
+            prepareLock.unlock();
+        }
+    }
+
+    public long getFirstLsn() {
+        return firstLsn;
+    }
+
+    @Override
+    protected void closeFiles() {
+        // 等待正在准备的段, 再关闭文件
+        preallocator.shutdown();
+        try {
+            preallocator.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+
+        segmentLock.lock();
+        try {
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+            segments.clear();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package backend.dm.page;
 
 import backend.dm.PageCache.PageCache;
+import common.Error;
+import utils.Panic;
+import utils.Parser;
 import utils.RandomUtil;
 
 import java.util.Arrays;
@@ -8,15 +11,25 @@ import java.util.Arrays;
 /**
  * 数据库存储的第一页
  *
- * 特殊用途: 存储元数据, 启动检查 ValidCheck
+ * 特殊用途: 存储元数据, 启动检查 ValidCheck, 最近一次检查点日志的 LSN, 页格式版本
+ *
+ * 页格式版本: 新建数据库时写入, 打开时(恢复之前)检查, 与当前版本不同时拒绝打开;
+ * 版本 1 的普通页带有页 LSN(见 PageNormal), 没有版本的旧数据库为 0
  */
 public class PageFirst {
     private static final int VC_LENGTH = 8;
     private static final int VC_OFFSET = 100;
+    private static final int CHECKPOINT_OFFSET = VC_OFFSET + VC_LENGTH * 2;
+    private static final int CHECKPOINT_LENGTH = 8;
+    private static final int FORMAT_OFFSET = CHECKPOINT_OFFSET + CHECKPOINT_LENGTH;
+    private static final int FORMAT_LENGTH = 4;
+
+    public static final int PAGE_FORMAT_VERSION = 1;
 
-    private static byte[] initData() {
+    public static byte[] initData() {
         byte[] data = new byte[PageCache.PAGE_SIZE];
         setVcOpen(data);
+        System.arraycopy(Parser.parseIntToBytes(PAGE_FORMAT_VERSION), 0, data, FORMAT_OFFSET, FORMAT_LENGTH);
 
         return data;
     }
@@ -55,4 +68,45 @@ public class PageFirst {
         return Arrays.equals(Arrays.copyOfRange(data, VC_OFFSET, VC_OFFSET + VC_LENGTH),
                 Arrays.copyOfRange(data, VC_OFFSET + VC_LENGTH, VC_OFFSET + VC_LENGTH * 2));
     }
+
+    /**
+     * 在 116~123 字节处保存最近一次检查点日志的 LSN, 0 表示没有检查点
+     * @param page
+     * @param lsn
+     */
+    public static void setCheckpointLsn(Page page, long lsn) {
+        page.setDirty(true);
+        setCheckpointLsn(page.getData(), lsn);
+    }
+
+    public static void setCheckpointLsn(byte[] data, long lsn) {
+        System.arraycopy(Parser.parseLongToByte(lsn), 0, data, CHECKPOINT_OFFSET, CHECKPOINT_LENGTH);
+    }
+
+    public static long getCheckpointLsn(Page page) {
+        return getCheckpointLsn(page.getData());
+    }
+
+    public static long getCheckpointLsn(byte[] data) {
+        return Parser.parseLong(Arrays.copyOfRange(data, CHECKPOINT_OFFSET, CHECKPOINT_OFFSET + CHECKPOINT_LENGTH));
+    }
+
+    /**
+     * 在 124~127 字节处保存页格式版本
+     * @param page
+     * @return
+     */
+    public static int getFormatVersion(Page page) {
+        return Parser.parseBytesToInt(Arrays.copyOfRange(page.getData(), FORMAT_OFFSET, FORMAT_OFFSET + FORMAT_LENGTH));
+    }
+
+    /**
+     * 页格式与当前版本不同时拒绝打开
+     * @param page
+     */
+    public static void checkFormat(Page page) {
+        if (getFormatVersion(page) != PAGE_FORMAT_VERSION) {
+            Panic.panic(Error.BadPageFormatException);
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package backend.dm.page;
 
+import backend.common.SubArray;
 import backend.dm.PageCache.PageCache;
 import utils.Parser;
 
@@ -9,40 +10,91 @@ import java.util.Arrays;
  * 普通数据页
  *
  * [0:1]: 存储空闲位置偏移
- * [2:]: 存储真实数据
+ * [2:9]: 页 LSN, 已应用到该页的最后一条日志的 LSN, 新页为 -1
+ * [10:]: 存储真实数据
+ *
+ * 页 LSN: 每次修改页之后设置为对应日志的 LSN, 恢复时 LSN 不大于页 LSN 的日志已在页中, 直接跳过
+ *     - 正常运行时只通过 insert / update 修改页, 两者都要求日志的 LSN
+ *     - 该布局为页格式版本 1(见 PageFirst), 之前的版本没有页 LSN, 数据从第 2 字节开始
+ *     - 写日志与修改页需要在页锁内完成, 保证 LSN 较小的修改不会晚于页 LSN 的设置
  */
 public class PageNormal {
 
     private static final short FREE_OFFSET = 0;
-    private static final short DATA_OFFSET = 2;
+    private static final short LSN_OFFSET = 2;
+    private static final short DATA_OFFSET = 10;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - DATA_OFFSET;    // 最多可存储字节数
 
     public static byte[] initData() {
         byte[] data = new byte[PageCache.PAGE_SIZE];
         setFSO(data, DATA_OFFSET);
+        setPageLsn(data, -1);
 
         return data;
     }
 
-    public static short insert(Page page, byte[] insertData) {
+    /**
+     * 插入数据并设置页 LSN
+     * @param page
+     * @param insertData
+     * @param lsn 插入日志的 LSN
+     * @return
+     */
+    public static short insert(Page page, byte[] insertData, long lsn) {
         page.setDirty(true);
 
         short offset = getFSO(page);
         System.arraycopy(insertData, 0, page.getData(), offset, insertData.length);
         setFSO(page.getData(), (short) (offset + insertData.length));
+        setPageLsn(page, lsn);
 
         return offset;
     }
 
+    /**
+     * 修改数据并设置页 LSN
+     * @param page
+     * @param data
+     * @param offset
+     * @param lsn 更新日志的 LSN
+     */
+    public static void update(Page page, SubArray data, short offset, long lsn) {
+        page.setDirty(true);
+        System.arraycopy(data.getArray(), data.getStart(), page.getData(), offset, data.getEnd() - data.getStart());
+        setPageLsn(page, lsn);
+    }
+
 
     public static short getFSO(Page page) {
         return getFSO(page.getData());
     }
     public static short getFSO(byte[] data) {
-        return Parser.parseShort(Arrays.copyOfRange(data, FREE_OFFSET, DATA_OFFSET));
+        return Parser.parseShort(Arrays.copyOfRange(data, FREE_OFFSET, LSN_OFFSET));
     }
     public static void setFSO(byte[] data, short offset) {
-        System.arraycopy(Parser.parseShortToByte(offset), 0, data, FREE_OFFSET, DATA_OFFSET - FREE_OFFSET);
+        System.arraycopy(Parser.parseShortToByte(offset), 0, data, FREE_OFFSET, LSN_OFFSET - FREE_OFFSET);
+    }
+
+    public static long getPageLsn(Page page) {
+        return getPageLsn(page.getData());
+    }
+    public static long getPageLsn(byte[] data) {
+        return Parser.parseLong(Arrays.copyOfRange(data, LSN_OFFSET, DATA_OFFSET));
+    }
+
+    /**
+     * 页 LSN 只增不减
+     * @param page
+     * @param lsn
+     */
+    public static void setPageLsn(Page page, long lsn) {
+        if (lsn > getPageLsn(page)) {
+            page.setDirty(true);
+            setPageLsn(page.getData(), lsn);
+        }
+    }
+    private static void setPageLsn(byte[] data, long lsn) {
+        System.arraycopy(Parser.parseLongToByte(lsn), 0, data, LSN_OFFSET, DATA_OFFSET - LSN_OFFSET);
     }
 
     public static int getFreeSpace(Page page) {
@@ -56,12 +108,23 @@ public class PageNormal {
      * @param offset
      */
     public static void recoverInsert(Page page, byte[] data, short offset) {
+        recoverInsert(page, new SubArray(data, 0, data.length), offset);
+    }
+
+    /**
+     * 数据库崩溃后重新打开时, 直接插入数据, 数据来自日志缓冲区的视图
+     * @param page
+     * @param data
+     * @param offset
+     */
+    public static void recoverInsert(Page page, SubArray data, short offset) {
+        int length = data.getEnd() - data.getStart();
         page.setDirty(true);
-        System.arraycopy(data, 0, page.getData(), offset, data.length);
+        System.arraycopy(data.getArray(), data.getStart(), page.getData(), offset, length);
 
         short pageFSO = getFSO(page.getData());
-        if (pageFSO < offset + data.length) {
-            setFSO(page.getData(), (short) (offset + data.length));
+        if (pageFSO < offset + length) {
+            setFSO(page.getData(), (short) (offset + length));
         }
     }
 
@@ -72,8 +135,18 @@ public class PageNormal {
      * @param offset
      */
     public static void recoverUpdate(Page page, byte[] data, short offset) {
+        recoverUpdate(page, new SubArray(data, 0, data.length), offset);
+    }
+
+    /**
+     * 数据库崩溃后重新打开时, 修改数据, 数据来自日志缓冲区的视图
+     * @param page
+     * @param data
+     * @param offset
+     */
+    public static void recoverUpdate(Page page, SubArray data, short offset) {
         page.setDirty(true);
-        System.arraycopy(data, 0, page.getData(), offset, data.length);
+        System.arraycopy(data.getArray(), data.getStart(), page.getData(), offset, data.getEnd() - data.getStart());
     }
 
 }
@@ -0,0 +1,694 @@
+package backend.tm;
+
+import common.Error;
+import utils.FileUtil;
+import utils.Panic;
+import utils.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * TransactionManager 的公共实现: xid 分配, 内存状态表, 组提交, XID 文件格式
+ *
+ * 子类只负责 XID 文件的读写方式, 构造完成后需调用 init 完成文件检查与状态加载
+ *
+ * xid 分配不加锁: xidCounter 为 AtomicLong, 文件头保存的是已预留的 xid 上界 reserved,
+ * 每次预留一段 xid(状态写为 FREE)后才更新文件头, 只有用完预留段的 begin 才需要加锁写文件头
+ * 打开文件时从 reserved 向前找到最后一个非 FREE 的 xid, 恢复准确的 xidCounter
+ *
+ * XID 文件有两种格式, 打开时根据文件头自动识别:
+ *     - 原格式: [reserved(8)] [xid 1 状态(1)] [xid 2 状态(1)] ...
+ *     - 打包格式(版本 2): [magic(4)] [version(4)] [reserved(8)] [lowWatermark(8)] [baseXid(8)]
+ *                        [abortedCount(4)] [aborted xid(8)] ... [状态字节] ...
+ *       每个字节保存 4 个事务的状态(每个 2 bit), 第一个状态字节对应 baseXid ~ baseXid + 3
+ *       低水位 W 之前的事务都已结束, 其中回滚的 xid 单独保存在文件头之后, 其余均视为已提交,
+ *       因此 W 之前的状态可以从文件中丢弃(打开时重写文件), 查询时也不需要状态表
+ */
+public abstract class AbstractTransactionManager implements TransactionManager {
+    protected static final byte TRANSACTION_ACTIVE = 0;
+    protected static final byte TRANSACTION_COMMITTED = 1;
+    protected static final byte TRANSACTION_ABORTED = 2;
+    // 已预留但尚未分配的 xid
+    protected static final byte TRANSACTION_FREE = 3;
+
+    protected static final long SUPER_XID = 0;
+
+    // 打开时批量读取事务状态的缓冲区大小
+    private static final int LOAD_BUFFER_SIZE = 64 * 1024;
+
+    // 打包格式的文件头, magic 最高位为 1, 原格式的文件头(非负的 reserved)不会与之相同
+    static final int PACKED_MAGIC = 0x80584944;
+    static final int PACKED_VERSION = 2;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = MAGIC_OFFSET + 4;
+    private static final int RESERVED_OFFSET = VERSION_OFFSET + 4;
+    private static final int WATERMARK_OFFSET = RESERVED_OFFSET + 8;
+    private static final int BASE_OFFSET = WATERMARK_OFFSET + 8;
+    private static final int ABORTED_COUNT_OFFSET = BASE_OFFSET + 8;
+    static final int PACKED_HEADER_LENGTH = ABORTED_COUNT_OFFSET + 4;
+
+    // 低水位之前可丢弃的状态超过该字节数时, 打开文件时重写文件
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+
+    private AtomicLong xidCounter;    // 已分配的最大 xid
+    private long openCounter;         // 打开文件时的 xidCounter, 之前的 FREE 是崩溃留下的空洞
+    private volatile long reserved;   // 已预留(写入文件头)的最大 xid
+    private int reserveSize;          // 每次预留的 xid 数量
+    private Lock reserveLock;
+
+    private boolean packed;           // 是否为打包格式
+    private long statusOffset;        // 状态区在文件中的起始位置
+    private long baseXid;             // 状态区第一个位置对应的 xid
+    private long statusLength;        // 文件中已存在的状态字节数
+    private Lock statusWriteLock;     // 打包格式下一个字节包含多个事务, 写入需要读-改-写
+
+    private volatile long lowWatermark;              // 之前的事务都已结束
+    private volatile long[] abortedBelowWatermark;   // 低水位之前回滚的 xid, 升序
+    private Lock watermarkLock;
+
+    private XIDStatusTable statusTable;       // 内存中的事务状态, 写穿透到文件
+    private GroupCommitter groupCommitter;    // 组提交模式下非空
+
+    // 运行中的事务, 在 begin/commit/abort 中增量维护
+    private ConcurrentSkipListSet<Long> activeXids;
+    // begin 持有读锁完成 xid 分配与登记, snapshot 持有写锁, 保证快照看到的 xmax 之前的事务都已登记
+    private ReadWriteLock snapshotLock;
+
+    /**
+     * 文件当前长度
+     */
+    protected abstract long length();
+
+    /**
+     * 从 offset 处读取 length 个字节到 dst
+     */
+    protected abstract void read(long offset, byte[] dst, int length);
+
+    /**
+     * 将 src 的前 length 个字节写入 offset 处, 不改变任何共享的文件位置
+     */
+    protected abstract void write(long offset, byte[] src, int length);
+
+    /**
+     * 强制将已写入的数据同步到磁盘
+     */
+    protected abstract void force();
+
+    /**
+     * 关闭底层文件
+     */
+    protected abstract void closeFile();
+
+    protected void init(TransactionManagerConfig config) {
+        reserveLock = new ReentrantLock();
+        statusWriteLock = new ReentrantLock();
+        watermarkLock = new ReentrantLock();
+        snapshotLock = new ReentrantReadWriteLock();
+        reserveSize = config.getXidReserveSize();
+        checkXIDFile();
+
+        if (config.isGroupCommit()) {
+            this.groupCommitter = new GroupCommitter(this::writeBatch,
+                    config.getMaxBatchSize(), config.getMaxWaitMicros());
+        }
+    }
+
+    /**
+     * 新建打包格式 XID 文件时写入的文件头
+     * @return
+     */
+    static byte[] packedHeader() {
+        ByteBuffer header = ByteBuffer.allocate(PACKED_HEADER_LENGTH);
+        header.putInt(MAGIC_OFFSET, PACKED_MAGIC);
+        header.putInt(VERSION_OFFSET, PACKED_VERSION);
+        header.putLong(RESERVED_OFFSET, 0);
+        header.putLong(WATERMARK_OFFSET, SUPER_XID + 1);
+        header.putLong(BASE_OFFSET, 0);
+        header.putInt(ABORTED_COUNT_OFFSET, 0);
+        return header.array();
+    }
+
+    /**
+     * 检查 XID 文件是否合法
+     * 同时初始化文件格式, reserved 与 xidCounter
+     *
+     * 文件可以比 reserved 对应的长度更长(映射的 extent, 或预留时写入 FREE 后未来得及更新文件头),
+     * 超出部分视为未使用
+     */
+    private void checkXIDFile() {
+        long fileLength = length();
+        if (fileLength < XID_HEADER_LENGTH) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+
+        byte[] header = new byte[XID_HEADER_LENGTH];
+        read(0, header, XID_HEADER_LENGTH);
+
+        long[] aborted = new long[0];
+        if (ByteBuffer.wrap(header).getInt(MAGIC_OFFSET) == PACKED_MAGIC) {
+            if (fileLength < PACKED_HEADER_LENGTH) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+
+            header = new byte[PACKED_HEADER_LENGTH];
+            read(0, header, PACKED_HEADER_LENGTH);
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            if (buf.getInt(VERSION_OFFSET) != PACKED_VERSION) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+
+            this.packed = true;
+            this.reserved = buf.getLong(RESERVED_OFFSET);
+            this.lowWatermark = buf.getLong(WATERMARK_OFFSET);
+            this.baseXid = buf.getLong(BASE_OFFSET);
+            int abortedCount = buf.getInt(ABORTED_COUNT_OFFSET);
+            if (abortedCount < 0 || baseXid < 0 || baseXid % XIDStatusTable.XIDS_PER_BYTE != 0
+                    || baseXid > lowWatermark || lowWatermark > reserved + 1
+                    || PACKED_HEADER_LENGTH + abortedCount * 8L > fileLength) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+
+            byte[] raw = new byte[abortedCount * 8];
+            read(PACKED_HEADER_LENGTH, raw, raw.length);
+            aborted = new long[abortedCount];
+            ByteBuffer.wrap(raw).asLongBuffer().get(aborted);
+            this.statusOffset = PACKED_HEADER_LENGTH + raw.length;
+        }
+        else {
+            this.packed = false;
+            this.reserved = Parser.parseLong(header);
+            this.lowWatermark = SUPER_XID + 1;
+            this.baseXid = 1;
+            this.statusOffset = XID_HEADER_LENGTH;
+        }
+
+        if (reserved < 0 || (reserved >= lowWatermark && getXidPosition(reserved) >= fileLength)) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+
+        this.statusLength = Math.max(0, fileLength - statusOffset);
+        loadStatusTable();
+
+        // 预留段中未分配的 xid 为 FREE, 向前找到真正分配过的最大 xid
+        long counter = reserved;
+        while (counter >= lowWatermark && statusTable.get(counter) == TRANSACTION_FREE) {
+            counter -= 1;
+        }
+        this.openCounter = counter;
+        this.xidCounter = new AtomicLong(counter);
+
+        // 上次关闭(或崩溃)时仍在运行的事务
+        this.activeXids = new ConcurrentSkipListSet<>();
+        for (long xid = lowWatermark; xid <= counter; xid++) {
+            if (statusTable.get(xid) == TRANSACTION_ACTIVE) {
+                activeXids.add(xid);
+            }
+        }
+
+        // 状态区中低水位之前回滚的事务并入回滚列表, 之后不再需要这部分状态
+        this.abortedBelowWatermark = mergeAborted(aborted, baseXid, lowWatermark);
+        statusTable.dropBelow(lowWatermark);
+    }
+
+    /**
+     * 打开时将所有事务状态读入内存, 之后的状态查询不再访问文件
+     */
+    private void loadStatusTable() {
+        this.statusTable = new XIDStatusTable(baseXid, reserved + 1);
+        if (reserved < lowWatermark) {
+            return;
+        }
+
+        byte[] buf = new byte[LOAD_BUFFER_SIZE];
+        if (packed) {
+            long index = 0;
+            long last = byteIndex(reserved);
+            while (index <= last) {
+                int length = (int) Math.min(buf.length, last - index + 1);
+                read(statusOffset + index, buf, length);
+                statusTable.setPacked(baseXid + index * XIDStatusTable.XIDS_PER_BYTE, buf, length);
+                index += length;
+            }
+
+            // 最后一个字节中 reserved 之后的位置尚未预留
+            for (long xid = reserved + 1; xid % XIDStatusTable.XIDS_PER_BYTE != 0; xid++) {
+                statusTable.set(xid, TRANSACTION_FREE);
+            }
+            return;
+        }
+
+        long xid = baseXid;
+        while (xid <= reserved) {
+            int length = (int) Math.min(buf.length, (reserved - xid + 1) * XID_SIZE);
+            read(getXidPosition(xid), buf, length);
+
+            for (int i = 0; i < length; i += XID_SIZE) {
+                statusTable.set(xid++, buf[i]);
+            }
+        }
+    }
+
+    /**
+     * 将状态表中 [from, to) 内回滚的 xid 追加到 aborted 之后
+     */
+    private long[] mergeAborted(long[] aborted, long from, long to) {
+        long[] merged = aborted;
+        int count = aborted.length;
+        for (long xid = Math.max(from, SUPER_XID + 1); xid < to; xid++) {
+            if (statusTable.get(xid) == TRANSACTION_ABORTED) {
+                if (count == merged.length) {
+                    merged = Arrays.copyOf(merged, Math.max(count * 2, 8));
+                }
+                merged[count++] = xid;
+            }
+        }
+
+        return count == merged.length ? merged : Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * xid 的状态在状态区中的字节下标
+     */
+    private long byteIndex(long xid) {
+        if (packed) {
+            return (xid - baseXid) / XIDStatusTable.XIDS_PER_BYTE;
+        }
+        return (xid - baseXid) * XID_SIZE;
+    }
+
+    private long getXidPosition(long xid) {
+        return statusOffset + byteIndex(xid);
+    }
+
+    /**
+     * 将一组状态变更写入文件, 不 force
+     *
+     * 按 xid 排序后, 状态字节连续的变更合并为一次写入
+     * 打包格式下一个字节包含 4 个事务的状态, 先读出已有字节再修改, 整个过程持有 statusWriteLock
+     * 同一组内不会出现重复的 xid: begin 返回前其 ACTIVE 状态已落盘, 之后才可能 commit/abort
+     * @param xids
+     * @param statuses
+     * @param count
+     */
+    private void writeStatuses(long[] xids, byte[] statuses, int count) {
+        // 状态只占 2 bit, 与 xid 打包后排序
+        long[] sorted = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (xids[i] >= baseXid) {
+                sorted[n++] = (xids[i] << 2) | statuses[i];
+            }
+        }
+        Arrays.sort(sorted, 0, n);
+
+        if (packed) {
+            statusWriteLock.lock();
+        }
+        try {
+            int start = 0;
+            while (start < n) {
+                int end = start + 1;
+                while (end < n && byteIndex(sorted[end] >>> 2) - byteIndex(sorted[end - 1] >>> 2) <= 1) {
+                    end += 1;
+                }
+
+                long firstIndex = byteIndex(sorted[start] >>> 2);
+                int length = (int) (byteIndex(sorted[end - 1] >>> 2) - firstIndex + 1);
+                byte[] run = new byte[length];
+                if (packed) {
+                    // 预留新段时可能超出文件末尾, 超出部分全部为 FREE
+                    int existing = (int) Math.max(0, Math.min(length, statusLength - firstIndex));
+                    read(statusOffset + firstIndex, run, existing);
+                    Arrays.fill(run, existing, length, (byte) 0xFF);
+                }
+
+                for (int i = start; i < end; i++) {
+                    long xid = sorted[i] >>> 2;
+                    byte status = (byte) (sorted[i] & 3);
+                    int index = (int) (byteIndex(xid) - firstIndex);
+                    if (packed) {
+                        int shift = (int) (xid % XIDStatusTable.XIDS_PER_BYTE) * 2;
+                        run[index] = (byte) ((run[index] & ~(3 << shift)) | (status << shift));
+                    }
+                    else {
+                        run[index] = status;
+                    }
+                }
+
+                write(statusOffset + firstIndex, run, length);
+                statusLength = Math.max(statusLength, firstIndex + length);
+                start = end;
+            }
+        } finally {
+            if (packed) {
+                statusWriteLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 更新 xid 事务的状态: status
+     * @param xid
+     * @param status
+     */
+    private void updateXID(long xid, byte status) {
+        writeStatuses(new long[]{xid}, new byte[]{status}, 1);
+        // 强制同步缓存到文件
+        force();
+
+        statusTable.set(xid, status);
+    }
+
+    /**
+     * 预留一段 xid, 保证 xid 已被预留
+     *
+     * 先将新预留段的状态写为 FREE 并落盘, 再更新文件头并落盘:
+     * 否则崩溃后文件头指向的预留段可能是全 0(ACTIVE), 打开时会被误认为已分配的事务
+     * @param xid
+     */
+    private void reserve(long xid) {
+        reserveLock.lock();
+        try {
+            long oldReserved = reserved;
+            if (xid <= oldReserved) {
+                return;
+            }
+
+            long newReserved = Math.max(xid, oldReserved) + reserveSize - 1;
+            int count = (int) (newReserved - oldReserved);
+            long[] xids = new long[count];
+            byte[] statuses = new byte[count];
+            for (int i = 0; i < count; i++) {
+                xids[i] = oldReserved + 1 + i;
+            }
+            Arrays.fill(statuses, TRANSACTION_FREE);
+            writeStatuses(xids, statuses, count);
+            force();
+
+            write(packed ? RESERVED_OFFSET : 0, Parser.parseLongToByte(newReserved), 8);
+            force();
+
+            reserved = newReserved;
+        } finally {
+            reserveLock.unlock();
+        }
+    }
+
+    /**
+     * 组提交: 将一批状态变更写入文件, 只 force 一次
+     * @param xids
+     * @param statuses
+     * @param count
+     */
+    private void writeBatch(long[] xids, byte[] statuses, int count) {
+        writeStatuses(xids, statuses, count);
+        force();
+
+        // 落盘后再更新内存, 调用方被唤醒时即可查询到新状态
+        for (int i = 0; i < count; i++) {
+            statusTable.set(xids[i], statuses[i]);
+        }
+    }
+
+    /**
+     * 开启一个新事务, 多线程安全
+     *
+     * 预留段内的 xid 分配只有一次 CAS; 状态写入与落盘不持有任何全局锁
+     * @return
+     */
+    @Override
+    public long begin() {
+        long xid;
+        snapshotLock.readLock().lock();
+        try {
+            xid = xidCounter.incrementAndGet();
+            activeXids.add(xid);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        if (xid > reserved) {
+            reserve(xid);
+        }
+
+        if (groupCommitter != null) {
+            // 并发开启的事务合并刷盘
+            groupCommitter.submit(xid, TRANSACTION_ACTIVE);
+        }
+        else {
+            updateXID(xid, TRANSACTION_ACTIVE);
+        }
+        return xid;
+    }
+
+    /**
+     * 状态落盘并写入状态表后才从运行中集合移除: 快照中不在运行的事务, 其最终状态一定可以查到
+     */
+    @Override
+    public void commit(long xid) {
+        if (groupCommitter != null) {
+            groupCommitter.submit(xid, TRANSACTION_COMMITTED);
+        }
+        else {
+            updateXID(xid, TRANSACTION_COMMITTED);
+        }
+        activeXids.remove(xid);
+    }
+
+    @Override
+    public void abort(long xid) {
+        if (groupCommitter != null) {
+            groupCommitter.submit(xid, TRANSACTION_ABORTED);
+        }
+        else {
+            updateXID(xid, TRANSACTION_ABORTED);
+        }
+        activeXids.remove(xid);
+    }
+
+    /**
+     * 生成当前运行中事务的快照
+     * @return
+     */
+    @Override
+    public Snapshot snapshot() {
+        snapshotLock.writeLock().lock();
+        try {
+            long xmax = xidCounter.get() + 1;
+            long[] active = new long[activeXids.size()];
+            int count = 0;
+            for (long xid : activeXids) {
+                if (count == active.length) {
+                    active = Arrays.copyOf(active, count * 2 + 1);
+                }
+                active[count++] = xid;
+            }
+
+            return new Snapshot(xmax, count == active.length ? active : Arrays.copyOf(active, count));
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 推进低水位, 遇到仍在运行(或可能正在开启)的事务时停止
+     *
+     * 新的低水位写入文件头并落盘后才生效; 低水位之前的状态在下次打开文件时从文件中丢弃
+     * 原格式没有低水位, 保存全部状态, 不做任何事
+     * @param xid 期望的低水位
+     * @return 实际推进到的低水位
+     */
+    @Override
+    public long advanceLowWatermark(long xid) {
+        if (!packed) {
+            return lowWatermark;
+        }
+
+        watermarkLock.lock();
+        try {
+            long oldWatermark = lowWatermark;
+            long limit = Math.min(xid, xidCounter.get() + 1);
+            long watermark = oldWatermark;
+            while (watermark < limit) {
+                byte status = statusTable.get(watermark);
+                if (status == TRANSACTION_ACTIVE || (status == TRANSACTION_FREE && watermark > openCounter)) {
+                    break;
+                }
+                watermark += 1;
+            }
+            if (watermark == oldWatermark) {
+                return oldWatermark;
+            }
+
+            // 先发布回滚列表, 再发布低水位: 读线程看到新低水位时一定能看到对应的回滚列表
+            abortedBelowWatermark = mergeAborted(abortedBelowWatermark, oldWatermark, watermark);
+
+            write(WATERMARK_OFFSET, Parser.parseLongToByte(watermark), 8);
+            force();
+
+            lowWatermark = watermark;
+            statusTable.dropBelow(watermark);
+            return watermark;
+        } finally {
+            watermarkLock.unlock();
+        }
+    }
+
+    @Override
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * 打开打包格式的 XID 文件前, 若低水位之前可丢弃的状态足够多, 则重写文件将其丢弃
+     *
+     * 被丢弃部分中回滚的 xid 并入文件头之后的回滚列表; 新文件写入临时文件并落盘后原子替换原文件,
+     * 替换后同步所在目录, 崩溃后不会丢失替换或同时留下两个文件
+     * @param file
+     */
+    static void compact(File file) {
+        byte[] header = new byte[PACKED_HEADER_LENGTH];
+        long[] aborted = null;
+        byte[] kept = null;    // 新文件保留的状态字节
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < PACKED_HEADER_LENGTH) {
+                return;
+            }
+            raf.readFully(header);
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            if (buf.getInt(MAGIC_OFFSET) != PACKED_MAGIC || buf.getInt(VERSION_OFFSET) != PACKED_VERSION) {
+                return;
+            }
+
+            long reserved = buf.getLong(RESERVED_OFFSET);
+            long watermark = buf.getLong(WATERMARK_OFFSET);
+            long base = buf.getLong(BASE_OFFSET);
+            int abortedCount = buf.getInt(ABORTED_COUNT_OFFSET);
+            long newBase = watermark - watermark % XIDStatusTable.XIDS_PER_BYTE;
+            long dropBytes = (newBase - base) / XIDStatusTable.XIDS_PER_BYTE;
+            if (dropBytes < COMPACT_THRESHOLD) {
+                return;
+            }
+
+            long statusOffset = PACKED_HEADER_LENGTH + abortedCount * 8L;
+            aborted = new long[abortedCount];
+            for (int i = 0; i < abortedCount; i++) {
+                aborted[i] = raf.readLong();
+            }
+
+            // 状态区中 [base, newBase) 的部分被丢弃, 其中回滚的 xid 需要保留
+            byte[] dropped = new byte[(int) dropBytes];
+            raf.seek(statusOffset);
+            raf.readFully(dropped);
+            long[] merged = Arrays.copyOf(aborted, aborted.length + 8);
+            int count = aborted.length;
+            for (long xid = Math.max(base, SUPER_XID + 1); xid < newBase; xid++) {
+                int index = (int) ((xid - base) / XIDStatusTable.XIDS_PER_BYTE);
+                int shift = (int) (xid % XIDStatusTable.XIDS_PER_BYTE) * 2;
+                if (((dropped[index] >>> shift) & 3) == TRANSACTION_ABORTED) {
+                    if (count == merged.length) {
+                        merged = Arrays.copyOf(merged, count * 2);
+                    }
+                    merged[count++] = xid;
+                }
+            }
+            // 回滚的 xid 每个占 8 字节, 回滚过多时重写反而使文件变大
+            if ((count - aborted.length) * 8L > dropBytes - COMPACT_THRESHOLD) {
+                return;
+            }
+            aborted = Arrays.copyOf(merged, count);
+
+            long keepFrom = statusOffset + dropBytes;
+            long keepTo = Math.max(keepFrom, statusOffset + (reserved - base) / XIDStatusTable.XIDS_PER_BYTE + 1);
+            kept = new byte[(int) (keepTo - keepFrom)];
+            raf.seek(keepFrom);
+            raf.readFully(kept);
+
+            buf.putLong(BASE_OFFSET, newBase);
+            buf.putInt(ABORTED_COUNT_OFFSET, aborted.length);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.write(header);
+            for (long xid : aborted) {
+                raf.writeLong(xid);
+            }
+            raf.write(kept);
+            raf.getChannel().force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        FileUtil.syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * 事务状态检验函数, 只读取内存中的状态, 无锁且不访问文件
+     *
+     * 低水位之前的事务只可能已提交或已回滚, 只需在回滚列表中查找
+     * 超级事务 XID 0 总在低水位之前, 且永远不在回滚列表中, 即永远是已提交状态
+     *
+     * @param xid
+     * @param status
+     * @return
+     */
+    private boolean checkXID(long xid, byte status) {
+        if (xid >= lowWatermark) {
+            byte current = statusTable.get(xid);
+            // 推进低水位时先发布低水位再丢弃状态表前缀, 读到 FREE 时重新检查低水位
+            if (current != TRANSACTION_FREE || xid >= lowWatermark) {
+                return current == status;
+            }
+        }
+
+        boolean aborted = Arrays.binarySearch(abortedBelowWatermark, xid) >= 0;
+        return status == (aborted ? TRANSACTION_ABORTED : TRANSACTION_COMMITTED);
+    }
+
+    @Override
+    public boolean isActive(long xid) {
+        return checkXID(xid, TRANSACTION_ACTIVE);
+    }
+
+    @Override
+    public boolean isCommitted(long xid) {
+        return checkXID(xid, TRANSACTION_COMMITTED);
+    }
+
+    @Override
+    public boolean isAborted(long xid) {
+        return checkXID(xid, TRANSACTION_ABORTED);
+    }
+
+    @Override
+    public void close() {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+
+        closeFile();
+    }
+}
@@ -0,0 +1,170 @@
+package backend.tm;
+
+import utils.Panic;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * XID 状态变更的组提交
+ *
+ * 并发的 begin/commit/abort 将状态变更放入队列后阻塞, 由单个刷盘线程把一批变更合并为
+ * 一次写入 + 一次 force, 落盘后唤醒这一批的所有调用方
+ *
+ * 一批在以下任一条件满足时刷盘:
+ *     - 队列中的变更数达到 maxBatchSize
+ *     - 刷盘线程发现第一条变更后已等待 maxWait
+ */
+class GroupCommitter {
+
+    /**
+     * 将一批状态变更写入 XID 文件并 force, 由 TransactionManager 提供
+     */
+    interface BatchWriter {
+        void write(long[] xids, byte[] statuses, int count);
+    }
+
+    private final BatchWriter writer;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+
+    private final Lock lock;
+    private final Condition pending;    // 有新的状态变更入队
+    private final Condition durable;    // 一批状态变更已落盘
+
+    private long[] pendingXids;
+    private byte[] pendingStatuses;
+    private int pendingCount;
+
+    private long submittedSeq;    // 已入队的变更序号
+    private long durableSeq;      // 已落盘的变更序号, 只由刷盘线程推进
+    private boolean closed;
+
+    private final Thread flusher;
+
+    GroupCommitter(BatchWriter writer, int maxBatchSize, long maxWaitMicros) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+
+        this.lock = new ReentrantLock();
+        this.pending = lock.newCondition();
+        this.durable = lock.newCondition();
+
+        this.pendingXids = new long[maxBatchSize];
+        this.pendingStatuses = new byte[maxBatchSize];
+
+        this.flusher = new Thread(this::runFlusher, "xid-group-committer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 提交一条状态变更, 阻塞直到该变更落盘
+     * @param xid
+     * @param status
+     */
+    void submit(long xid, byte status) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("GroupCommitter is closed");
+            }
+
+            if (pendingCount == pendingXids.length) {
+                pendingXids = Arrays.copyOf(pendingXids, pendingCount * 2);
+                pendingStatuses = Arrays.copyOf(pendingStatuses, pendingCount * 2);
+            }
+            pendingXids[pendingCount] = xid;
+            pendingStatuses[pendingCount] = status;
+            pendingCount += 1;
+
+            long seq = ++submittedSeq;
+            pending.signal();
+
+            while (durableSeq < seq) {
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 刷盘线程: 取出一批变更, 在锁外写入并 force
+     */
+    private void runFlusher() {
+        long[] xids = new long[maxBatchSize];
+        byte[] statuses = new byte[maxBatchSize];
+
+        while (true) {
+            int count;
+            long batchEnd;
+
+            lock.lock();
+            try {
+                while (pendingCount == 0 && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (pendingCount == 0) {
+                    // 已关闭且队列为空
+                    return;
+                }
+
+                // 等待凑满一批
+                long remaining = maxWaitNanos;
+                while (pendingCount < maxBatchSize && !closed && remaining > 0) {
+                    try {
+                        remaining = pending.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }
+
+                count = Math.min(pendingCount, maxBatchSize);
+                System.arraycopy(pendingXids, 0, xids, 0, count);
+                System.arraycopy(pendingStatuses, 0, statuses, 0, count);
+                System.arraycopy(pendingXids, count, pendingXids, 0, pendingCount - count);
+                System.arraycopy(pendingStatuses, count, pendingStatuses, 0, pendingCount - count);
+                pendingCount -= count;
+
+                // 队列按入队顺序出队, 这一批正好是 durableSeq 之后的 count 条
+                batchEnd = durableSeq + count;
+            } finally {
+                lock.unlock();
+            }
+
+            writer.write(xids, statuses, count);
+
+            lock.lock();
+            try {
+                durableSeq = batchEnd;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 刷完队列中剩余的变更后停止刷盘线程
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+}
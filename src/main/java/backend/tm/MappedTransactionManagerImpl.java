@@ -0,0 +1,151 @@
+package backend.tm;
+
+import utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于内存映射读写 XID 文件
+ *
+ * 文件按固定大小的 extent 分段映射, 写入超出已映射范围时一次扩展一个 extent(映射会同时扩展文件),
+ * 读写都是对 MappedByteBuffer 的下标访问, 没有系统调用, 也没有共享的文件位置
+ * force 只同步被写过的 extent
+ */
+public class MappedTransactionManagerImpl extends AbstractTransactionManager {
+    // 每个 extent 的大小
+    static final int EXTENT_SIZE = 4 * 1024 * 1024;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+
+    private volatile MappedByteBuffer[] extents;
+    private Lock extentLock;       // 扩展 extent, 维护 dirty
+    private Lock forceLock;        // 串行化 force, 保证 force 返回时之前的写入都已落盘
+    private BitSet dirty;          // 上次 force 后被写过的 extent
+
+    public MappedTransactionManagerImpl(RandomAccessFile randomAccessFile, FileChannel fileChannel) {
+        this(randomAccessFile, fileChannel, TransactionManagerConfig.defaultConfig());
+    }
+
+    public MappedTransactionManagerImpl(RandomAccessFile randomAccessFile, FileChannel fileChannel,
+                                        TransactionManagerConfig config) {
+        this.randomAccessFile = randomAccessFile;
+        this.fileChannel = fileChannel;
+        this.extentLock = new ReentrantLock();
+        this.forceLock = new ReentrantLock();
+        this.dirty = new BitSet();
+        this.extents = new MappedByteBuffer[0];
+
+        long fileLength = 0;
+        try {
+            fileLength = randomAccessFile.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        ensureMapped(Math.max(fileLength, 1));
+
+        init(config);
+    }
+
+    /**
+     * 保证 [0, end) 已被映射
+     * @param end
+     */
+    private void ensureMapped(long end) {
+        if (end <= (long) extents.length * EXTENT_SIZE) {
+            return;
+        }
+
+        extentLock.lock();
+        try {
+            MappedByteBuffer[] current = extents;
+            int count = (int) ((end + EXTENT_SIZE - 1) / EXTENT_SIZE);
+            if (count <= current.length) {
+                return;
+            }
+
+            MappedByteBuffer[] grown = Arrays.copyOf(current, count);
+            for (int i = current.length; i < count; i++) {
+                grown[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, (long) i * EXTENT_SIZE, EXTENT_SIZE);
+            }
+            extents = grown;
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            extentLock.unlock();
+        }
+    }
+
+    @Override
+    protected long length() {
+        return (long) extents.length * EXTENT_SIZE;
+    }
+
+    @Override
+    protected void read(long offset, byte[] dst, int length) {
+        MappedByteBuffer[] current = extents;
+        for (int i = 0; i < length; i++) {
+            long pos = offset + i;
+            dst[i] = current[(int) (pos / EXTENT_SIZE)].get((int) (pos % EXTENT_SIZE));
+        }
+    }
+
+    @Override
+    protected void write(long offset, byte[] src, int length) {
+        ensureMapped(offset + length);
+
+        MappedByteBuffer[] current = extents;
+        for (int i = 0; i < length; i++) {
+            long pos = offset + i;
+            current[(int) (pos / EXTENT_SIZE)].put((int) (pos % EXTENT_SIZE), src[i]);
+        }
+
+        // 写入之后再标记, 保证之后的 force 一定能覆盖这次写入
+        extentLock.lock();
+        try {
+            dirty.set((int) (offset / EXTENT_SIZE), (int) ((offset + length - 1) / EXTENT_SIZE) + 1);
+        } finally {
+            extentLock.unlock();
+        }
+    }
+
+    @Override
+    protected void force() {
+        forceLock.lock();
+        try {
+            BitSet toForce;
+            extentLock.lock();
+            try {
+                toForce = (BitSet) dirty.clone();
+                dirty.clear();
+            } finally {
+                extentLock.unlock();
+            }
+
+            MappedByteBuffer[] current = extents;
+            for (int i = toForce.nextSetBit(0); i >= 0; i = toForce.nextSetBit(i + 1)) {
+                current[i].force();
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    @Override
+    protected void closeFile() {
+        force();
+        try {
+            fileChannel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
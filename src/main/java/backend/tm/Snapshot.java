@@ -0,0 +1,56 @@
+package backend.tm;
+
+import java.util.Arrays;
+
+/**
+ * 事务快照: 创建时刻正在运行的事务集合, 不可变
+ *
+ * 判断一个事务在快照中是否仍在运行只需比较与二分查找, 不需要访问 TransactionManager:
+ *     - xid >= xmax: 快照之后才开启, 视为运行中
+ *     - xid < xmin: 快照时已结束
+ *     - 其余: 在 active 中即为运行中
+ * 已结束的事务是提交还是回滚, 仍需查询 TransactionManager
+ */
+public class Snapshot {
+    private final long xmin;       // 快照时最小的运行中事务, 没有运行中事务时等于 xmax
+    private final long xmax;       // 快照时已分配的最大 xid + 1
+    private final long[] active;   // 快照时运行中的事务, 升序
+
+    Snapshot(long xmax, long[] active) {
+        this.xmax = xmax;
+        this.active = active;
+        this.xmin = active.length > 0 ? active[0] : xmax;
+    }
+
+    public long getXmin() {
+        return xmin;
+    }
+
+    public long getXmax() {
+        return xmax;
+    }
+
+    public int getActiveCount() {
+        return active.length;
+    }
+
+    public long[] getActive() {
+        return active.clone();
+    }
+
+    /**
+     * 在快照中 xid 是否仍在运行
+     * @param xid
+     * @return
+     */
+    public boolean isActive(long xid) {
+        if (xid >= xmax) {
+            return true;
+        }
+        if (xid < xmin) {
+            return false;
+        }
+
+        return Arrays.binarySearch(active, xid) >= 0;
+    }
+}
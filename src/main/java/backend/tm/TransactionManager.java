@@ -28,6 +28,9 @@ public interface TransactionManager {
     boolean isActive(long xid);
     boolean isCommitted(long xid);
     boolean isAborted(long xid);
+    long advanceLowWatermark(long xid);    // 推进低水位: 之前的事务都已结束, 其状态可从文件中丢弃
+    long getLowWatermark();
+    Snapshot snapshot();                   // 当前运行中事务的快照
     void close();
 
     /**
@@ -35,7 +38,11 @@ public interface TransactionManager {
      * @param path
      * @return
      */
-    static TransactionManagerImpl create(String path) {
+    static TransactionManager create(String path) {
+        return create(path, TransactionManagerConfig.defaultConfig());
+    }
+
+    static TransactionManager create(String path, TransactionManagerConfig config) {
         File f = new File(path + XID_FILE_SUFFIX);
 
         try {
@@ -60,7 +67,8 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_HEADER_LENGTH]);
+        byte[] header = config.isPacked() ? AbstractTransactionManager.packedHeader() : new byte[XID_HEADER_LENGTH];
+        ByteBuffer buf = ByteBuffer.wrap(header);
         try {
             fileChannel.position(0);
             fileChannel.write(buf);
@@ -68,7 +76,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(randomAccessFile, fileChannel);
+        return newTransactionManager(randomAccessFile, fileChannel, config);
     }
 
     /**
@@ -76,7 +84,11 @@ public interface TransactionManager {
      * @param path
      * @return
      */
-    static TransactionManagerImpl open(String path) {
+    static TransactionManager open(String path) {
+        return open(path, TransactionManagerConfig.defaultConfig());
+    }
+
+    static TransactionManager open(String path, TransactionManagerConfig config) {
         File f = new File(path + XID_FILE_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -86,6 +98,9 @@ public interface TransactionManager {
             Panic.panic(Error.FileCannotRWException);
         }
 
+        // 打包格式: 丢弃低水位之前的状态
+        AbstractTransactionManager.compact(f);
+
         FileChannel fileChannel = null;
         RandomAccessFile randomAccessFile = null;
         try {
@@ -95,6 +110,17 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(randomAccessFile, fileChannel);
+        return newTransactionManager(randomAccessFile, fileChannel, config);
+    }
+
+    /**
+     * 根据配置选择 XID 文件的读写方式
+     */
+    static TransactionManager newTransactionManager(RandomAccessFile randomAccessFile, FileChannel fileChannel,
+                                                    TransactionManagerConfig config) {
+        if (config.isMapped()) {
+            return new MappedTransactionManagerImpl(randomAccessFile, fileChannel, config);
+        }
+        return new TransactionManagerImpl(randomAccessFile, fileChannel, config);
     }
 }
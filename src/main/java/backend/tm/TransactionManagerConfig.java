@@ -0,0 +1,82 @@
+package backend.tm;
+
+/**
+ * TransactionManager 的可选配置
+ *
+ * 默认配置与原有行为一致: 每次状态变更单独写入并 force
+ */
+public class TransactionManagerConfig {
+    // 组提交: 并发事务的状态变更合并为一次写入 + 一次 force
+    private boolean groupCommit = false;
+    // 一批最多合并的状态变更数
+    private int maxBatchSize = 64;
+    // 刷盘线程凑批的最长等待时间(微秒)
+    private long maxWaitMicros = 200;
+    // 使用内存映射读写 XID 文件
+    private boolean mapped = false;
+    // 每次写文件头预留的 xid 数量
+    private int xidReserveSize = 1024;
+    // 新建 XID 文件时使用打包格式(每个事务 2 bit, 支持低水位), 打开已有文件时自动识别格式
+    private boolean packed = false;
+
+    public static TransactionManagerConfig defaultConfig() {
+        return new TransactionManagerConfig();
+    }
+
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getMaxWaitMicros() {
+        return maxWaitMicros;
+    }
+
+    public void setMaxWaitMicros(long maxWaitMicros) {
+        if (maxWaitMicros < 0) {
+            throw new IllegalArgumentException("maxWaitMicros must not be negative");
+        }
+        this.maxWaitMicros = maxWaitMicros;
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    public int getXidReserveSize() {
+        return xidReserveSize;
+    }
+
+    public void setXidReserveSize(int xidReserveSize) {
+        if (xidReserveSize <= 0) {
+            throw new IllegalArgumentException("xidReserveSize must be positive");
+        }
+        this.xidReserveSize = xidReserveSize;
+    }
+
+    public boolean isPacked() {
+        return packed;
+    }
+
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+}
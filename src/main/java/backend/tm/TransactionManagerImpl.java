@@ -2,39 +2,35 @@ package backend.tm;
 
 import common.Error;
 import utils.Panic;
-import utils.Parser;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
-public class TransactionManagerImpl implements TransactionManager{
-    private static final byte TRANSACTION_ACTIVE = 0;
-    private static final byte TRANSACTION_COMMITTED = 1;
-    private static final byte TRANSACTION_ABORTED = 2;
-
-    private static final long SUPER_XID = 0;
+/**
+ * 基于 FileChannel 读写 XID 文件
+ *
+ * 所有读写都指定文件位置, 不使用 channel 的共享 position, 并发读写互不干扰
+ */
+public class TransactionManagerImpl extends AbstractTransactionManager {
 
     private RandomAccessFile randomAccessFile;
     private FileChannel fileChannel;
-    private long xidCounter;    // 维护事务数量
-    private Lock counterLock;
 
     public TransactionManagerImpl(RandomAccessFile randomAccessFile, FileChannel fileChannel) {
+        this(randomAccessFile, fileChannel, TransactionManagerConfig.defaultConfig());
+    }
+
+    public TransactionManagerImpl(RandomAccessFile randomAccessFile, FileChannel fileChannel,
+                                  TransactionManagerConfig config) {
         this.randomAccessFile = randomAccessFile;
         this.fileChannel = fileChannel;
-        counterLock = new ReentrantLock();
-        checkXIDFile();
+        init(config);
     }
 
-    /**
-     * 检查 XID 文件是否合法
-     * 同时初始化 xidCounter
-     */
-    private void checkXIDFile() {
+    @Override
+    protected long length() {
         long fileLength = 0;
         try {
             fileLength = randomAccessFile.length();
@@ -42,154 +38,46 @@ public class TransactionManagerImpl implements TransactionManager{
             Panic.panic(Error.BadXIDFileException);
         }
 
-        if (fileLength < XID_HEADER_LENGTH) {
-            Panic.panic(Error.BadXIDFileException);
-        }
-
-        ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
-        try {
-            fileChannel.position(0);
-            fileChannel.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLength) {
-            Panic.panic(Error.BadXIDFileException);
-        }
-    }
-
-    private long getXidPosition(long xid) {
-        return XID_HEADER_LENGTH + (xid - 1) * XID_SIZE;
+        return fileLength;
     }
 
-    /**
-     * 更新 xid 事务的状态: status
-     * @param xid
-     * @param status
-     */
-    private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_SIZE];
-        tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
-
+    @Override
+    protected void read(long offset, byte[] dst, int length) {
+        ByteBuffer buf = ByteBuffer.wrap(dst, 0, length);
         try {
-            fileChannel.position(offset);
-            fileChannel.write(buf);
+            while (buf.hasRemaining()) {
+                if (fileChannel.read(buf, offset + buf.position()) < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-
-        try {
-            // 强制同步缓存到文件
-            fileChannel.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
     }
 
-    /**
-     * XID 自增, 更新 file header
-     */
-    private void increaseXIDCounter() {
-        this.xidCounter += 1;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.parseLongToByte(xidCounter));
-        try {
-            fileChannel.position(0);
-            fileChannel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        
+    @Override
+    protected void write(long offset, byte[] src, int length) {
+        ByteBuffer buf = ByteBuffer.wrap(src, 0, length);
         try {
-            fileChannel.force(false);
+            while (buf.hasRemaining()) {
+                fileChannel.write(buf, offset + buf.position());
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
-    /**
-     * 开启一个新事务, 多线程安全
-     * @return
-     */
     @Override
-    public long begin() {
-        counterLock.lock();
+    protected void force() {
         try {
-            long xid = xidCounter + 1;
-            updateXID(xid, TRANSACTION_ACTIVE);
-            increaseXIDCounter();
-            return xid;
-        }
-        finally {
-            counterLock.unlock();
-        }
-    }
-
-    @Override
-    public void commit(long xid) {
-        updateXID(xid, TRANSACTION_COMMITTED);
-    }
-
-    @Override
-    public void abort(long xid) {
-        updateXID(xid, TRANSACTION_ABORTED);
-    }
-
-    /**
-     * 事务状态检验函数
-     *
-     * @param xid
-     * @param status
-     * @return
-     */
-    private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_SIZE]);
-
-        try {
-            fileChannel.position(offset);
-            fileChannel.read(buf);
+            fileChannel.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-
-        return buf.array()[0] == status;
-    }
-
-    @Override
-    public boolean isActive(long xid) {
-        if (xid == SUPER_XID) {
-            return false;
-        }
-
-        return checkXID(xid, TRANSACTION_ACTIVE);
-    }
-
-    @Override
-    public boolean isCommitted(long xid) {
-        if (xid == SUPER_XID) {
-            return true;
-        }
-
-        return checkXID(xid, TRANSACTION_COMMITTED);
-    }
-
-    @Override
-    public boolean isAborted(long xid) {
-        if (xid == SUPER_XID) {
-            return false;
-        }
-
-        return checkXID(xid, TRANSACTION_ABORTED);
     }
 
     @Override
-    public void close() {
+    protected void closeFile() {
         try {
             fileChannel.close();
             randomAccessFile.close();
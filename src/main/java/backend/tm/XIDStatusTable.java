@@ -0,0 +1,159 @@
+package backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存中的事务状态表, 以 xid 为下标, 每个事务状态占 2 bit
+ *
+ * 读操作无锁: 只读取 volatile 的 Segment 引用与其中一个字节
+ * 写操作加锁: 修改字节后重新发布 Segment 引用, 保证读线程能看到最新状态; 容量不足时按倍数扩容
+ * 未写入过的 xid 状态为 FREE(二进制 11), 即尚未分配
+ *
+ * 表只保存 baseXid 之后的状态, dropBelow 可以丢弃低水位之前的前缀
+ */
+class XIDStatusTable {
+    static final int XIDS_PER_BYTE = 4;
+    private static final int BITS_PER_XID = 2;
+    private static final int STATUS_MASK = (1 << BITS_PER_XID) - 1;
+    // 4 个 xid 均为 FREE 的字节
+    private static final byte ALL_FREE = (byte) 0xFF;
+
+    /**
+     * baseXid 与数组一起发布, 读线程看到的两者总是一致的
+     */
+    private static class Segment {
+        final long baseXid;    // bytes[0] 的最低 2 bit 对应的 xid, 是 4 的倍数
+        final byte[] bytes;
+
+        Segment(long baseXid, byte[] bytes) {
+            this.baseXid = baseXid;
+            this.bytes = bytes;
+        }
+    }
+
+    private volatile Segment segment;
+    private final Lock lock;
+
+    XIDStatusTable(long capacity) {
+        this(0, capacity);
+    }
+
+    /**
+     * @param baseXid  表中最小的 xid, 会向下对齐到 4 的倍数
+     * @param capacity 初始可容纳的最大 xid + 1
+     */
+    XIDStatusTable(long baseXid, long capacity) {
+        long base = baseXid - baseXid % XIDS_PER_BYTE;
+        byte[] bytes = new byte[byteLength(capacity - base)];
+        Arrays.fill(bytes, ALL_FREE);
+        this.segment = new Segment(base, bytes);
+        this.lock = new ReentrantLock();
+    }
+
+    private static int byteLength(long capacity) {
+        long length = (capacity + XIDS_PER_BYTE - 1) / XIDS_PER_BYTE;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many transactions for XIDStatusTable");
+        }
+        return (int) Math.max(length, 1);
+    }
+
+    private static int shift(long xid) {
+        return (int) (xid % XIDS_PER_BYTE) * BITS_PER_XID;
+    }
+
+    /**
+     * 无锁读取事务状态, xid 不在表中时返回 FREE
+     * @param xid
+     * @return
+     */
+    byte get(long xid) {
+        Segment s = segment;
+        long index = (xid - s.baseXid) / XIDS_PER_BYTE;
+        if (xid < s.baseXid || index >= s.bytes.length) {
+            return STATUS_MASK;    // FREE
+        }
+
+        return (byte) ((s.bytes[(int) index] >>> shift(xid)) & STATUS_MASK);
+    }
+
+    /**
+     * 写入事务状态, xid 在 baseXid 之前时忽略
+     * @param xid
+     * @param status
+     */
+    void set(long xid, byte status) {
+        lock.lock();
+        try {
+            Segment s = segment;
+            if (xid < s.baseXid) {
+                return;
+            }
+
+            int index = (int) ((xid - s.baseXid) / XIDS_PER_BYTE);
+            if (index >= s.bytes.length) {
+                int oldLength = s.bytes.length;
+                byte[] bytes = Arrays.copyOf(s.bytes, Math.max(byteLength(xid + 1 - s.baseXid), oldLength * 2));
+                Arrays.fill(bytes, oldLength, bytes.length, ALL_FREE);
+                s = new Segment(s.baseXid, bytes);
+            }
+
+            int shift = shift(xid);
+            s.bytes[index] = (byte) ((s.bytes[index] & ~(STATUS_MASK << shift)) | ((status & STATUS_MASK) << shift));
+            // 重新发布引用, 与读线程建立 happens-before 关系
+            segment = s;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 以打包格式批量写入, 用于打开文件时加载状态
+     * @param firstXid raw[0] 对应的 xid, 必须是 4 的倍数且不小于 baseXid
+     * @param raw
+     * @param length
+     */
+    void setPacked(long firstXid, byte[] raw, int length) {
+        lock.lock();
+        try {
+            Segment s = segment;
+            int from = (int) ((firstXid - s.baseXid) / XIDS_PER_BYTE);
+            if (from + length > s.bytes.length) {
+                int oldLength = s.bytes.length;
+                byte[] bytes = Arrays.copyOf(s.bytes, from + length);
+                Arrays.fill(bytes, oldLength, bytes.length, ALL_FREE);
+                s = new Segment(s.baseXid, bytes);
+            }
+
+            System.arraycopy(raw, 0, s.bytes, from, length);
+            segment = s;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃 xid 之前(向下对齐到 4 的倍数)的状态
+     * @param xid
+     */
+    void dropBelow(long xid) {
+        lock.lock();
+        try {
+            Segment s = segment;
+            long base = xid - xid % XIDS_PER_BYTE;
+            if (base <= s.baseXid) {
+                return;
+            }
+
+            int from = (int) Math.min((base - s.baseXid) / XIDS_PER_BYTE, s.bytes.length);
+            byte[] bytes = new byte[Math.max(s.bytes.length - from, 1)];
+            Arrays.fill(bytes, ALL_FREE);
+            System.arraycopy(s.bytes, from, bytes, 0, s.bytes.length - from);
+            segment = new Segment(base, bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -12,6 +12,8 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception LogClosedException = new RuntimeException("Log is closed!");
+    public static final Exception BadPageFormatException = new RuntimeException("Bad page format!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
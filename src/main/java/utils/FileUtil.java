@@ -0,0 +1,24 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class FileUtil {
+    /**
+     * 同步目录本身, 使其中文件的创建、重命名与删除落盘
+     * Windows 不能打开目录, 其文件系统也不需要这一步
+     * @param dir
+     */
+    public static void syncDirectory(File dir) {
+        if (File.separatorChar == '\\') {
+            return;
+        }
+        try (FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package backend.common;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AbstractCacheTest {
+
+    /**
+     * 加载在 gate 打开之前阻塞, 让所有读者都等待同一次加载
+     */
+    static class GatedCache extends AbstractCache<Object> {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger releases = new AtomicInteger();
+        volatile Exception failure;
+
+        GatedCache() {
+            super(0);
+        }
+
+        @Override
+        protected Object getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            gate.await();
+            if (failure != null) {
+                throw failure;
+            }
+            return new Object();
+        }
+
+        @Override
+        protected void releaseForCache(Object object) {
+            releases.incrementAndGet();
+        }
+    }
+
+    private static Object[] getConcurrently(GatedCache cache, int threads) throws Exception {
+        Object[] results = new Object[threads];
+        Thread[] readers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int n = i;
+            readers[i] = new Thread(() -> {
+                try {
+                    results[n] = cache.get(1);
+                } catch (Exception e) {
+                    results[n] = e;
+                }
+            });
+            readers[i].start();
+        }
+
+        while (cache.loads.get() == 0) {
+            Thread.sleep(1);
+        }
+        // 等待其他读者进入等待
+        Thread.sleep(50);
+        cache.gate.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        return results;
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        GatedCache cache = new GatedCache();
+        int threads = 8;
+        Object[] results = getConcurrently(cache, threads);
+
+        assertEquals(1, cache.loads.get());
+        for (Object result : results) {
+            assertSame(results[0], result);
+        }
+
+        // 每个读者持有一个引用
+        for (int i = 0; i < threads; i++) {
+            assertEquals(0, cache.releases.get());
+            cache.release(1);
+        }
+        assertEquals(1, cache.releases.get());
+    }
+
+    @Test
+    public void testLoadFailure() throws Exception {
+        GatedCache cache = new GatedCache();
+        cache.failure = new Exception("load failed");
+        Object[] results = getConcurrently(cache, 8);
+
+        assertEquals(1, cache.loads.get());
+        for (Object result : results) {
+            assertSame(cache.failure, result);
+        }
+
+        // 失败不留在缓存中, 之后可以重新加载
+        cache.failure = null;
+        Object object = cache.get(1);
+        assertEquals(2, cache.loads.get());
+        assertSame(object, cache.get(1));
+    }
+}
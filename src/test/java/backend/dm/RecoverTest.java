@@ -0,0 +1,637 @@
+package backend.dm;
+
+import backend.common.SubArray;
+import backend.dm.PageCache.PageCache;
+import backend.dm.logger.Logger;
+import backend.dm.logger.LoggerImpl;
+import backend.dm.page.Page;
+import backend.dm.page.PageFirst;
+import backend.dm.page.PageImpl;
+import backend.dm.page.PageNormal;
+import backend.tm.TransactionManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecoverTest {
+
+    /**
+     * 内存中的页缓存: disk 为已写回的页, crash 之后只保留 disk
+     */
+    static class MemoryPageCache implements PageCache {
+        final Map<Integer, byte[]> disk = new HashMap<>();
+        final Map<Integer, Page> pages = new HashMap<>();
+
+        @Override
+        public synchronized int newPage(byte[] initData) {
+            int pageNo = getPageNumber() + 1;
+            disk.put(pageNo, initData.clone());
+            return pageNo;
+        }
+
+        @Override
+        public synchronized Page getPage(int pageNo) {
+            return pages.computeIfAbsent(pageNo, n -> new PageImpl(n,
+                    disk.containsKey(n) ? disk.get(n).clone() : n == 1 ? PageFirst.initData() : PageNormal.initData(),
+                    this));
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void release(Page page) {
+        }
+
+        @Override
+        public void truncateByBgno(int maxPgno) {
+        }
+
+        @Override
+        public synchronized int getPageNumber() {
+            int max = 0;
+            for (int pageNo : disk.keySet()) {
+                max = Math.max(max, pageNo);
+            }
+            for (int pageNo : pages.keySet()) {
+                max = Math.max(max, pageNo);
+            }
+            return max;
+        }
+
+        @Override
+        public synchronized void flushPage(Page page) {
+            disk.put(page.getPageNo(), page.getData().clone());
+        }
+
+        synchronized void flushAll() {
+            for (Page page : pages.values()) {
+                flushPage(page);
+            }
+        }
+
+        /**
+         * 崩溃: 没有写回的修改丢失
+         */
+        synchronized MemoryPageCache crash() {
+            MemoryPageCache cache = new MemoryPageCache();
+            cache.disk.putAll(disk);
+            return cache;
+        }
+    }
+
+    /**
+     * 数据项: 第一个字节为有效标志, 0 表示有效
+     */
+    static byte[] item(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 1; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    static short insert(Logger logger, long xid, Page page, byte[] data) {
+        long lsn = Recover.logInsert(logger, xid, page, data);
+        return PageNormal.insert(page, data, lsn);
+    }
+
+    /**
+     * 写更新日志并修改页, 变化较少时为差量更新日志
+     */
+    static long update(Logger logger, long xid, Page page, short offset, byte[] newData) {
+        byte[] oldData = Arrays.copyOfRange(page.getData(), offset, offset + newData.length);
+        long uid = ((long) page.getPageNo() << 32) | offset;
+        SubArray data = new SubArray(newData, 0, newData.length);
+        long lsn = logger.log(Recover.updateLog(xid, uid, oldData, data));
+        PageNormal.update(page, data, offset, lsn);
+        return lsn;
+    }
+
+    static byte[] read(PageCache pageCache, int pageNo, short offset, int length) throws Exception {
+        Page page = pageCache.getPage(pageNo);
+        try {
+            return Arrays.copyOfRange(page.getData(), offset, offset + length);
+        } finally {
+            page.release();
+        }
+    }
+
+    static void delete(String filename) {
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+        assertTrue(new File(filename + TransactionManager.XID_FILE_SUFFIX).delete());
+    }
+
+    /**
+     * 崩溃恢复测试的日志、事务文件与页缓存: 新建后写入, crash 之后重新打开, close 时关闭并删除文件
+     */
+    static class CrashFixture implements AutoCloseable {
+        final String filename;
+        Logger logger;
+        TransactionManager tm;
+        MemoryPageCache cache;
+
+        CrashFixture(String filename) {
+            this.filename = filename;
+            this.logger = Logger.create(filename);
+            this.tm = TransactionManager.create(filename);
+            this.cache = new MemoryPageCache();
+        }
+
+        /**
+         * 崩溃: 没有写回的页丢失, 重新打开日志与事务文件
+         */
+        void crash() {
+            logger.close();
+            tm.close();
+            cache = cache.crash();
+            logger = Logger.open(filename);
+            tm = TransactionManager.open(filename);
+        }
+
+        RecoveryStats crashAndRecover(int redoThreads) {
+            crash();
+            return Recover.recover(tm, logger, cache, redoThreads, RecoveryListener.NONE);
+        }
+
+        @Override
+        public void close() {
+            logger.close();
+            tm.close();
+            delete(filename);
+        }
+    }
+
+    @Test
+    public void testUndoInsert() throws Exception {
+        String filename = "./recover_undo_insert_test";
+        Logger logger = Logger.create(filename);
+        TransactionManager tm = TransactionManager.create(filename);
+        MemoryPageCache cache = new MemoryPageCache();
+
+        long committed = tm.begin();
+        byte[] a = item(1, 30);
+        short offsetA = insert(logger, committed, cache.getPage(2), a);
+        tm.commit(committed);
+
+        // 崩溃时仍在运行的事务: 页 2 已写回, 页 3 没有
+        long loser = tm.begin();
+        byte[] b = item(2, 40);
+        byte[] c = item(3, 50);
+        short offsetB = insert(logger, loser, cache.getPage(2), b);
+        short offsetC = insert(logger, loser, cache.getPage(3), c);
+        cache.flushPage(cache.getPage(2));
+        logger.close();
+        tm.close();
+
+        for (int round = 0; round < 2; round++) {
+            cache = cache.crash();
+            logger = Logger.open(filename);
+            tm = TransactionManager.open(filename);
+            Recover.recover(tm, logger, cache, 1);
+
+            assertTrue(tm.isAborted(loser));
+            assertArrayEquals(a, read(cache, 2, offsetA, a.length));
+            // 插入的逆操作: 数据保留, 有效标志置为无效
+            byte[] undoneB = read(cache, 2, offsetB, b.length);
+            byte[] undoneC = read(cache, 3, offsetC, c.length);
+            assertEquals(1, undoneB[0]);
+            assertEquals(1, undoneC[0]);
+            assertArrayEquals(Arrays.copyOfRange(b, 1, b.length), Arrays.copyOfRange(undoneB, 1, b.length));
+            assertArrayEquals(Arrays.copyOfRange(c, 1, c.length), Arrays.copyOfRange(undoneC, 1, c.length));
+            // 页中后续插入的位置不受影响
+            Page page = cache.getPage(3);
+            assertEquals(offsetC + c.length, PageNormal.getFSO(page));
+            page.release();
+
+            // 第二轮: 恢复结果写回后再次崩溃, 重复恢复结果不变
+            cache.flushAll();
+            logger.close();
+            tm.close();
+        }
+
+        delete(filename);
+    }
+
+    @Test
+    public void testRedoSkipsAppliedRecords() throws Exception {
+        String filename = "./recover_redo_skip_test";
+        Logger logger = Logger.create(filename);
+        TransactionManager tm = TransactionManager.create(filename);
+        MemoryPageCache cache = new MemoryPageCache();
+        assertEquals(PageFirst.PAGE_FORMAT_VERSION, PageFirst.getFormatVersion(cache.getPage(1)));
+
+        long xid = tm.begin();
+        Page page = cache.getPage(2);
+        byte[] a = item(1, 30);
+        short offsetA = insert(logger, xid, page, a);
+        byte[] updated = a.clone();
+        updated[5] ^= 0x55;
+        long updateLsn = update(logger, xid, page, offsetA, updated);
+        tm.commit(xid);
+        // 写回时页 LSN 为更新日志的 LSN
+        assertEquals(updateLsn, PageNormal.getPageLsn(page));
+        cache.flushPage(page);
+
+        xid = tm.begin();
+        byte[] b = item(2, 20);
+        short offsetB = insert(logger, xid, page, b);
+        long insertLsn = PageNormal.getPageLsn(page);
+        tm.commit(xid);
+        logger.close();
+        tm.close();
+
+        cache = cache.crash();
+        logger = Logger.open(filename);
+        tm = TransactionManager.open(filename);
+        RecoveryStats stats = Recover.recover(tm, logger, cache, 1, RecoveryListener.NONE);
+
+        // LSN 不大于页 LSN 的两条日志跳过, 之后的插入重做
+        assertEquals(2, stats.getRecordsSkipped());
+        assertEquals(1, stats.getRecordsApplied());
+        assertArrayEquals(updated, read(cache, 2, offsetA, updated.length));
+        assertArrayEquals(b, read(cache, 2, offsetB, b.length));
+        page = cache.getPage(2);
+        assertEquals(insertLsn, PageNormal.getPageLsn(page));
+        assertEquals(offsetB + b.length, PageNormal.getFSO(page));
+        page.release();
+
+        logger.close();
+        tm.close();
+        delete(filename);
+    }
+
+    @Test
+    public void testCheckpointThenRecover() throws Exception {
+        String filename = "./recover_checkpoint_test";
+        Logger logger = Logger.create(filename);
+        TransactionManager tm = TransactionManager.create(filename);
+        MemoryPageCache cache = new MemoryPageCache();
+        LoggedPageCache pages = new LoggedPageCache(cache, logger, new Checkpoint(tm, logger));
+
+        // 页一直被引用, 只有显式写回的页落盘
+        Page page2 = pages.getPage(2);
+        Page page3 = pages.getPage(3);
+        Page page4 = pages.getPage(4);
+
+        long committed = tm.begin();
+        byte[] a = item(1, 30);
+        byte[] b = item(2, 30);
+        short offsetA = pages.insert(committed, page2, a);
+        short offsetB = pages.insert(committed, page3, b);
+        tm.commit(committed);
+        pages.transactionEnded(committed);
+        pages.flushPage(page2);
+
+        // 跨过检查点的事务
+        long loser = tm.begin();
+        byte[] c = item(3, 30);
+        short offsetC = pages.insert(loser, page4, c);
+
+        pages.checkpoint();
+        Map<Integer, Long> dirty = pages.getCheckpoint().getDirtyPageTable().snapshot();
+        assertEquals(2, dirty.size());
+        assertTrue(dirty.containsKey(3) && dirty.containsKey(4));
+
+        byte[] d = item(4, 30);
+        short offsetD = pages.insert(loser, page2, d);
+        long later = tm.begin();
+        byte[] updated = b.clone();
+        updated[7] ^= 0x33;
+        pages.update(later, page3, offsetB, updated);
+        tm.commit(later);
+        pages.transactionEnded(later);
+        logger.close();
+        tm.close();
+
+        cache = cache.crash();
+        logger = Logger.open(filename);
+        tm = TransactionManager.open(filename);
+        RecoveryStats stats = Recover.recover(tm, logger, cache, 1, RecoveryListener.NONE);
+
+        // 从页 3 的 recLsn 开始扫描: 不读页 2 第一次插入的日志
+        assertEquals(5, stats.getRecordsScanned());
+        assertTrue(tm.isAborted(loser));
+        assertArrayEquals(a, read(cache, 2, offsetA, a.length));
+        assertArrayEquals(updated, read(cache, 3, offsetB, updated.length));
+        assertEquals(1, read(cache, 4, offsetC, c.length)[0]);
+        assertEquals(1, read(cache, 2, offsetD, d.length)[0]);
+
+        // 释放最后一个引用时写回脏页, 移出脏页表
+        pages = new LoggedPageCache(cache, logger, new Checkpoint(tm, logger));
+        long xid = tm.begin();
+        Page page5 = pages.getPage(5);
+        byte[] e = item(5, 30);
+        short offsetE = pages.insert(xid, page5, e);
+        page5.release();
+        assertArrayEquals(e, Arrays.copyOfRange(cache.disk.get(5), offsetE, offsetE + e.length));
+        assertTrue(pages.getCheckpoint().getDirtyPageTable().isEmpty());
+        tm.commit(xid);
+
+        logger.close();
+        tm.close();
+        delete(filename);
+    }
+
+    @Test
+    public void testDeferredUndo() throws Exception {
+        String filename = "./recover_deferred_test";
+        Logger logger = Logger.create(filename);
+        TransactionManager tm = TransactionManager.create(filename);
+        MemoryPageCache cache = new MemoryPageCache();
+
+        long committed = tm.begin();
+        byte[] a = item(1, 30);
+        byte[] x = item(2, 30);
+        short offsetA = insert(logger, committed, cache.getPage(2), a);
+        short offsetX = insert(logger, committed, cache.getPage(3), x);
+        tm.commit(committed);
+
+        long loser = tm.begin();
+        byte[] b = item(3, 30);
+        short offsetB = insert(logger, loser, cache.getPage(2), b);
+        update(logger, loser, cache.getPage(3), offsetX, item(4, 30));
+        cache.flushAll();
+        logger.close();
+        tm.close();
+
+        cache = cache.crash();
+        logger = Logger.open(filename);
+        tm = TransactionManager.open(filename);
+        LoggedPageCache pages = new LoggedPageCache(cache, logger, new Checkpoint(tm, logger));
+
+        // 持有页 2 的锁, 后台线程停在页 2
+        Page locked = cache.getPage(2);
+        locked.lock();
+        DeferredUndo undo = Recover.recoverDeferred(tm, logger, pages, 1);
+        pages.setDeferredUndo(undo);
+
+        // 全部回滚之前事务仍在运行
+        assertTrue(tm.isActive(loser));
+        assertFalse(undo.isDone());
+        // 取页时在当前线程回滚该页
+        assertArrayEquals(x, read(pages, 3, offsetX, x.length));
+        assertEquals(1, undo.getPendingPages());
+
+        locked.unlock();
+        undo.awaitCompletion();
+        assertTrue(tm.isAborted(loser));
+        assertEquals(0, undo.getPendingPages());
+        assertArrayEquals(a, read(pages, 2, offsetA, a.length));
+        assertEquals(1, read(pages, 2, offsetB, b.length)[0]);
+
+        logger.close();
+        tm.close();
+        delete(filename);
+    }
+
+    @Test
+    public void testCrashDuringDeferredUndo() throws Exception {
+        String filename = "./recover_deferred_crash_test";
+        Logger logger = Logger.create(filename);
+        TransactionManager tm = TransactionManager.create(filename);
+        MemoryPageCache cache = new MemoryPageCache();
+
+        long committed = tm.begin();
+        byte[] x = item(1, 30);
+        short offsetX = insert(logger, committed, cache.getPage(3), x);
+        tm.commit(committed);
+
+        long loser = tm.begin();
+        byte[] b = item(2, 30);
+        short offsetB = insert(logger, loser, cache.getPage(2), b);
+        update(logger, loser, cache.getPage(3), offsetX, item(3, 30));
+        cache.flushAll();
+        logger.close();
+        tm.close();
+
+        cache = cache.crash();
+        logger = Logger.open(filename);
+        tm = TransactionManager.open(filename);
+        LoggedPageCache pages = new LoggedPageCache(cache, logger, new Checkpoint(tm, logger));
+        // 后台线程一直停在页 2
+        cache.getPage(2).lock();
+        DeferredUndo undo = Recover.recoverDeferred(tm, logger, pages, 1);
+        pages.setDeferredUndo(undo);
+
+        // 页 3 回滚之后, 新事务修改同一数据项并提交, 页没有写回
+        long later = tm.begin();
+        Page page3 = pages.getPage(3);
+        byte[] updated = x.clone();
+        updated[9] ^= 0x5A;
+        pages.update(later, page3, offsetX, updated);
+        tm.commit(later);
+        pages.transactionEnded(later);
+        logger.close();
+        tm.close();
+
+        cache = cache.crash();
+        logger = Logger.open(filename);
+        tm = TransactionManager.open(filename);
+        assertTrue(tm.isActive(loser));
+        RecoveryStats stats = Recover.recover(tm, logger, cache, 1, RecoveryListener.NONE);
+
+        // 页 3 已有补偿日志, 只回滚页 2, 新事务的修改不被覆盖
+        assertEquals(1, stats.getUndoRecords());
+        assertTrue(tm.isAborted(loser));
+        assertArrayEquals(updated, read(cache, 3, offsetX, updated.length));
+        assertEquals(1, read(cache, 2, offsetB, b.length)[0]);
+
+        logger.close();
+        tm.close();
+        delete(filename);
+    }
+
+    @Test
+    public void testRecoverLogLargerThanScanBuffer() throws Exception {
+        try (CrashFixture db = new CrashFixture("./recover_large_log_test")) {
+            // 长度不同的日志写满 200 页, 总量超过扫描缓冲区, 日志跨越缓冲区边界
+            int pageCount = 200;
+            short[][] offsets = new short[pageCount][];
+            byte[][][] items = new byte[pageCount][][];
+            int records = 0;
+            long xid = db.tm.begin();
+            for (int p = 0; p < pageCount; p++) {
+                Page page = db.cache.getPage(p + 2);
+                int count = 0;
+                offsets[p] = new short[64];
+                items[p] = new byte[64][];
+                while (true) {
+                    byte[] data = item(p * 31 + count, 40 + (p * 7 + count * 13) % 400);
+                    if (PageNormal.getFreeSpace(page) < data.length) {
+                        break;
+                    }
+                    offsets[p][count] = insert(db.logger, xid, page, data);
+                    items[p][count++] = data;
+                    records++;
+                }
+                items[p] = Arrays.copyOf(items[p], count);
+            }
+            db.tm.commit(xid);
+
+            // 页都没有写回
+            RecoveryStats stats = db.crashAndRecover(1);
+
+            assertEquals(records, stats.getRecordsScanned());
+            assertEquals(records, stats.getRecordsApplied());
+            assertTrue(stats.getBytesRead() > 1 << 20);
+            for (int p = 0; p < pageCount; p++) {
+                for (int i = 0; i < items[p].length; i++) {
+                    assertArrayEquals(items[p][i], read(db.cache, p + 2, offsets[p][i], items[p][i].length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRecoverDeltaUpdate() throws Exception {
+        try (CrashFixture db = new CrashFixture("./recover_delta_update_test")) {
+            long xid = db.tm.begin();
+            Page page = db.cache.getPage(2);
+            byte[] a = item(1, 100);
+            byte[] b = item(2, 100);
+            short offsetA = insert(db.logger, xid, page, a);
+            short offsetB = insert(db.logger, xid, page, b);
+            db.tm.commit(xid);
+            db.cache.flushPage(page);
+
+            // 两处相隔较远的变化: 差量更新日志, 两个变化段
+            byte[] updatedA = a.clone();
+            updatedA[10] ^= 0x11;
+            updatedA[80] ^= 0x22;
+            long uid = ((long) page.getPageNo() << 32) | offsetA;
+            byte[] log = Recover.updateLog(xid, uid, a, new SubArray(updatedA, 0, updatedA.length));
+            assertEquals(2, log[0]);
+            assertTrue(log.length < 2 * a.length);
+
+            long committed = db.tm.begin();
+            update(db.logger, committed, page, offsetA, updatedA);
+            db.tm.commit(committed);
+
+            long loser = db.tm.begin();
+            byte[] updatedB = b.clone();
+            updatedB[3] ^= 0x33;
+            updatedB[60] ^= 0x44;
+            update(db.logger, loser, page, offsetB, updatedB);
+
+            for (int round = 0; round < 2; round++) {
+                db.crashAndRecover(1);
+
+                // 提交的差量更新重做, 未完成的差量更新回滚
+                assertTrue(db.tm.isAborted(loser));
+                assertArrayEquals(updatedA, read(db.cache, 2, offsetA, updatedA.length));
+                assertArrayEquals(b, read(db.cache, 2, offsetB, b.length));
+
+                // 第二轮: 恢复结果写回后再次崩溃, 结果不变
+                db.cache.flushAll();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelRedo() throws Exception {
+        try (CrashFixture db = new CrashFixture("./recover_parallel_redo_test")) {
+            int pageCount = 64;
+            short[] offsets = new short[pageCount];
+            byte[][] items = new byte[pageCount][];
+            long xid = db.tm.begin();
+            for (int p = 0; p < pageCount; p++) {
+                items[p] = item(p, 50);
+                offsets[p] = insert(db.logger, xid, db.cache.getPage(p + 2), items[p]);
+            }
+            db.tm.commit(xid);
+
+            // 多个事务轮流修改各页, 同一数据项的修改需按 LSN 顺序重做
+            for (int round = 1; round <= 10; round++) {
+                xid = db.tm.begin();
+                for (int p = 0; p < pageCount; p++) {
+                    byte[] updated = items[p].clone();
+                    updated[round] = (byte) (round * 17 + p);
+                    updated[round + 20] = (byte) ~updated[round + 20];
+                    update(db.logger, xid, db.cache.getPage(p + 2), offsets[p], updated);
+                    items[p] = updated;
+                }
+                db.tm.commit(xid);
+            }
+
+            // 同一个崩溃后的磁盘分别单线程与并行恢复
+            db.crash();
+            MemoryPageCache serial = db.cache.crash();
+            MemoryPageCache parallel = db.cache.crash();
+            Recover.recover(db.tm, db.logger, serial, 1);
+            RecoveryStats stats = Recover.recover(db.tm, db.logger, parallel, 4, RecoveryListener.NONE);
+
+            assertEquals(pageCount * 11, stats.getRecordsApplied());
+            assertEquals(pageCount, stats.getPagesFetched());
+            for (int p = 0; p < pageCount; p++) {
+                assertArrayEquals(items[p], read(parallel, p + 2, offsets[p], items[p].length));
+                assertArrayEquals(serial.getPage(p + 2).getData(), parallel.getPage(p + 2).getData());
+            }
+        }
+    }
+
+    @Test
+    public void testGroupedUndoOrder() throws Exception {
+        try (CrashFixture db = new CrashFixture("./recover_grouped_undo_test")) {
+            Page page2 = db.cache.getPage(2);
+            Page page3 = db.cache.getPage(3);
+
+            long committed = db.tm.begin();
+            byte[] x = item(1, 40);
+            byte[] y = item(2, 40);
+            byte[] z = item(3, 40);
+            short offsetX = insert(db.logger, committed, page2, x);
+            short offsetZ = insert(db.logger, committed, page2, z);
+            short offsetY = insert(db.logger, committed, page3, y);
+            db.tm.commit(committed);
+
+            // 回滚事务多次修改同一数据项, 整体更新与差量更新交替
+            long loser = db.tm.begin();
+            byte[] x1 = item(50, 40);
+            byte[] x2 = x1.clone();
+            x2[5] ^= 0x0F;
+            byte[] x3 = x2.clone();
+            x3[5] ^= 0x70;
+            x3[30] ^= 0x01;
+            update(db.logger, loser, page2, offsetX, x1);
+            update(db.logger, loser, page2, offsetX, x2);
+            byte[] n = item(4, 40);
+            short offsetN = insert(db.logger, loser, page2, n);
+            byte[] n1 = n.clone();
+            n1[12] ^= 0x21;
+            update(db.logger, loser, page2, offsetN, n1);
+            update(db.logger, loser, page3, offsetY, item(60, 40));
+            update(db.logger, loser, page2, offsetX, x3);
+
+            // 之后提交的事务修改同一页的其他数据项
+            long later = db.tm.begin();
+            byte[] z1 = z.clone();
+            z1[20] ^= 0x42;
+            update(db.logger, later, page2, offsetZ, z1);
+            db.tm.commit(later);
+
+            RecoveryStats stats = db.crashAndRecover(1);
+
+            // 页 2、3 各重做一组、回滚一组
+            assertEquals(6, stats.getUndoRecords());
+            assertEquals(4, stats.getPagesFetched());
+            assertTrue(db.tm.isAborted(loser));
+            // 按 LSN 倒序回滚到最初的数据
+            assertArrayEquals(x, read(db.cache, 2, offsetX, x.length));
+            assertArrayEquals(y, read(db.cache, 3, offsetY, y.length));
+            assertArrayEquals(z1, read(db.cache, 2, offsetZ, z1.length));
+            byte[] undoneN = read(db.cache, 2, offsetN, n.length);
+            assertEquals(1, undoneN[0]);
+            assertArrayEquals(Arrays.copyOfRange(n, 1, n.length), Arrays.copyOfRange(undoneN, 1, n.length));
+        }
+    }
+}
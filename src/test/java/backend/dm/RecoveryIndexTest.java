@@ -0,0 +1,84 @@
+package backend.dm;
+
+import backend.common.SubArray;
+import backend.dm.logger.Logger;
+import backend.dm.logger.LoggerImpl;
+import backend.tm.TransactionManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecoveryIndexTest {
+
+    /**
+     * 更新日志: [LogType, XID, UID, OldData, NewData]
+     */
+    private static byte[] record(long xid, int i) {
+        int length = 40 + i % 50;
+        ByteBuffer buf = ByteBuffer.allocate(17 + 2 * length);
+        buf.put((byte) 1).putLong(xid).putLong(((long) (2 + i % 7) << 32) | (i & 0xFFFF));
+        for (int j = 0; j < 2 * length; j++) {
+            buf.put((byte) (i + j));
+        }
+        return buf.array();
+    }
+
+    @Test
+    public void testManyRecords() {
+        String filename = "./recovery_index_test";
+        Logger logger = Logger.create(filename);
+        TransactionManager tm = TransactionManager.create(filename);
+        long committed = tm.begin();
+        tm.commit(committed);
+        long active = tm.begin();
+
+        int count = 20000;
+        long[] lsns = new long[count];
+        for (int i = 0; i < count; i++) {
+            lsns[i] = logger.log(record(i % 3 == 0 ? active : committed, i), false);
+        }
+        logger.flush(lsns[count - 1]);
+
+        // 块很小, 内存上限只能容纳一小部分日志, 其余的从日志中重新读取
+        RecoveryIndex index = new RecoveryIndex(tm, logger, 4096, 256 * 1024);
+        logger.scan((lsn, log) -> {
+            int record = index.add(lsn, log);
+            int loser = index.loserOf(readXid(log));
+            if (loser >= 0) {
+                index.addLoserRecord(loser, record);
+            }
+            return true;
+        });
+
+        assertEquals(count, index.size());
+        assertEquals(1, index.loserCount());
+        assertEquals(active, index.loserXid(0));
+        assertEquals((count + 2) / 3, index.loserRecordCount(0));
+
+        SubArray view = new SubArray(null, 0, 0);
+        for (int i = 0; i < count; i++) {
+            assertEquals(lsns[i], index.lsn(i));
+            assertEquals(2 + i % 7, index.pageNo(i));
+            assertEquals(i % 3 == 0 ? 0 : -1, index.ownerOf(i));
+
+            long xid = i % 3 == 0 ? active : committed;
+            index.view(i, view);
+            assertArrayEquals(record(xid, i), Arrays.copyOfRange(view.getArray(), view.getStart(), view.getEnd()));
+        }
+
+        logger.close();
+        tm.close();
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+        assertTrue(new File(filename + TransactionManager.XID_FILE_SUFFIX).delete());
+    }
+
+    private static long readXid(SubArray log) {
+        return ByteBuffer.wrap(log.getArray(), log.getStart() + 1, 8).getLong();
+    }
+}
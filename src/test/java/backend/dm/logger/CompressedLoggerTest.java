@@ -0,0 +1,201 @@
+package backend.dm.logger;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedLoggerTest {
+
+    private static byte[] record(int i) {
+        byte[] data = new byte[200];
+        Arrays.fill(data, (byte) 'a');
+        data[0] = (byte) i;
+        data[1] = (byte) (i >>> 8);
+        return data;
+    }
+
+    @Test
+    public void testCompressedLog() throws Exception {
+        String filename = "./compressed_logger_test";
+        CompressedLogger logger = CompressedLogger.create(filename);
+
+        int count = 1000;
+        List<Long> lsns = new ArrayList<>();
+        for (int i = 0; i < count - 1; i++) {
+            lsns.add(logger.log(record(i), i % 100 == 99));
+        }
+        CompletableFuture<Long> future = logger.logAsync(record(count - 1));
+        lsns.add(future.get());
+        assertTrue(lsns.get(count - 1) < logger.getFlushedLsn());
+        logger.close();
+
+        // 重复的数据压缩后远小于原始大小
+        long fileSize = new File(filename + LoggerImpl.LOG_FILE_SUFFIX).length();
+        assertTrue(fileSize < count * 200 / 10);
+
+        logger = CompressedLogger.open(filename);
+        logger.rewind();
+        for (int i = 0; i < count; i++) {
+            assertTrue(Arrays.equals(record(i), logger.next()));
+        }
+        assertEquals(null, logger.next());
+
+        int[] scanned = {0};
+        logger.scan((lsn, log) -> {
+            int i = scanned[0]++;
+            assertEquals((long) lsns.get(i), lsn);
+            assertTrue(Arrays.equals(record(i), Arrays.copyOfRange(log.getArray(), log.getStart(), log.getEnd())));
+            return true;
+        });
+        assertEquals(count, scanned[0]);
+
+        // 从块中间的日志开始
+        int from = count / 2 + 3;
+        scanned[0] = from;
+        logger.scan(lsns.get(from), (lsn, log) -> {
+            assertEquals((long) lsns.get(scanned[0]++), lsn);
+            return true;
+        });
+        assertEquals(count, scanned[0]);
+
+        // 重新打开后 LSN 接着之前的日志流
+        long lsn = logger.log(record(count));
+        assertTrue(lsn > lsns.get(count - 1));
+        logger.close();
+
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testDeflateCodecClose() throws Exception {
+        DeflateCodec codec = new DeflateCodec();
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+
+        // 多个线程同时压缩, 对象放回空闲队列
+        Thread[] threads = new Thread[4];
+        boolean[] ok = new boolean[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            int n = t;
+            threads[t] = new Thread(() -> {
+                byte[] compressed = codec.compress(data, 0, data.length);
+                byte[] out = new byte[data.length];
+                ok[n] = codec.decompress(compressed, 0, compressed.length, out, 0, out.length)
+                        && Arrays.equals(data, out);
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (boolean b : ok) {
+            assertTrue(b);
+        }
+
+        // close 释放空闲的对象, 之后仍可使用
+        codec.close();
+        byte[] compressed = codec.compress(data, 0, data.length);
+        byte[] out = new byte[data.length];
+        assertTrue(codec.decompress(compressed, 0, compressed.length, out, 0, out.length));
+        assertTrue(Arrays.equals(data, out));
+        codec.close();
+    }
+
+    @Test
+    public void testOpenDetectsFormat() throws Exception {
+        String filename = "./compressed_logger_format_test";
+        LoggerConfig config = LoggerConfig.defaultConfig();
+        config.setCompressed(true);
+        config.setSegmented(true);
+        config.setSegmentSize(4096);
+        Logger logger = Logger.create(filename, config);
+        assertTrue(logger instanceof CompressedLogger);
+        long last = 0;
+        for (int i = 0; i < 100; i++) {
+            last = logger.log(record(i), i % 10 == 9);
+        }
+        logger.close();
+
+        // 打开时不扫描, 第一次写日志时重建块索引
+        logger = Logger.open(filename);
+        assertTrue(logger instanceof CompressedLogger);
+        long lsn = logger.log(record(100));
+        assertEquals(last + 4 + 200, lsn);
+        logger.close();
+
+        logger = Logger.open(filename);
+        int[] scanned = {0};
+        logger.scan((l, log) -> {
+            assertEquals(scanned[0]++, log.getArray()[log.getStart()] & 0xFF);
+            return true;
+        });
+        assertEquals(101, scanned[0]);
+        logger.close();
+
+        File dir = new File(filename).getAbsoluteFile().getParentFile();
+        String prefix = new File(filename).getName() + ".";
+        for (File f : dir.listFiles((d, name) -> name.startsWith(prefix))) {
+            assertTrue(f.delete());
+        }
+
+        // 普通日志打开后不是压缩日志
+        String plain = "./compressed_logger_plain_test";
+        Logger.create(plain).close();
+        logger = Logger.open(plain);
+        assertFalse(logger instanceof CompressedLogger);
+        logger.close();
+        assertTrue(new File(plain + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testLogAsyncBatchesBlocks() throws Exception {
+        String filename = "./compressed_logger_async_test";
+        CompressedLogger logger = CompressedLogger.create(filename);
+
+        int count = 1000;
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(logger.logAsync(record(i)));
+        }
+        long last = -1;
+        for (CompletableFuture<Long> future : futures) {
+            long lsn = future.get();
+            assertTrue(lsn > last);
+            last = lsn;
+        }
+        assertTrue(last < logger.getFlushedLsn());
+        logger.close();
+        assertTrue(logger.logAsync(record(count)).isCompletedExceptionally());
+
+        // 异步日志共用块, 而不是每条日志一个块
+        LoggerImpl inner = LoggerImpl.openFile(filename);
+        int[] blocks = {0};
+        inner.scan((lsn, log) -> {
+            blocks[0]++;
+            return true;
+        });
+        inner.close();
+        assertTrue(blocks[0] < count / 10);
+
+        logger = CompressedLogger.open(filename);
+        int[] scanned = {0};
+        logger.scan((lsn, log) -> {
+            assertTrue(Arrays.equals(record(scanned[0]++), Arrays.copyOfRange(log.getArray(), log.getStart(), log.getEnd())));
+            return true;
+        });
+        assertEquals(count, scanned[0]);
+        logger.close();
+
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+}
@@ -3,6 +3,17 @@ package backend.dm.logger;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class LoggerTest {
 
@@ -29,4 +40,313 @@ public class LoggerTest {
         logger.close();
         System.out.println(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
     }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String filename = "./logger_group_commit_test";
+        Logger logger = Logger.create(filename);
+
+        int threads = 8, rounds = 50;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            new Thread(() -> {
+                for (int j = 0; j < rounds; j++) {
+                    // 一半的日志不等待落盘, 由之后的批次或 close 写入
+                    logger.log((id + "-" + j).getBytes(), j % 2 == 0);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        logger.close();
+
+        Logger reopened = Logger.open(filename);
+        reopened.rewind();
+        Set<String> logs = new HashSet<>();
+        byte[] nextLog;
+        while ((nextLog = reopened.next()) != null) {
+            logs.add(new String(nextLog));
+        }
+        reopened.close();
+
+        assertEquals(threads * rounds, logs.size());
+        assertTrue(logs.contains("7-49"));
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testLsn() {
+        String filename = "./logger_lsn_test";
+        Logger logger = Logger.create(filename);
+
+        // LSN 是日志在文件中的偏移, 每条日志 8 字节描述信息
+        long lsn1 = logger.log("aaa".getBytes());
+        assertEquals(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).length() - 8 - 3, lsn1);
+        assertEquals(lsn1 + 8 + 3, logger.getFlushedLsn());
+
+        long lsn2 = logger.log("bbbb".getBytes(), false);
+        long lsn3 = logger.log("ccccc".getBytes(), false);
+        assertEquals(lsn1 + 8 + 3, lsn2);
+        assertEquals(lsn2 + 8 + 4, lsn3);
+        assertTrue(logger.getFlushedLsn() <= lsn2);
+
+        logger.flush(lsn2);
+        assertTrue(logger.getFlushedLsn() > lsn2);
+        logger.close();
+
+        logger = Logger.open(filename);
+        assertEquals(lsn3 + 8 + 5, logger.getFlushedLsn());
+        assertEquals(lsn3 + 8 + 5, logger.log("d".getBytes()));
+        logger.close();
+
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLogAsync() throws Exception {
+        String filename = "./logger_async_test";
+        Logger logger = Logger.create(filename);
+
+        CompletableFuture<Long>[] futures = new CompletableFuture[100];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = logger.logAsync(("log" + i).getBytes());
+        }
+        long last = logger.log("sync".getBytes());
+
+        long prev = -1;
+        for (CompletableFuture<Long> future : futures) {
+            long lsn = future.get();
+            assertTrue(lsn > prev);
+            assertTrue(lsn < logger.getFlushedLsn());
+            prev = lsn;
+        }
+        assertTrue(prev < last);
+        logger.logAsync("tail".getBytes());
+        logger.close();
+
+        // 关闭之后的异步日志立即以异常完成, 不会永远等待
+        CompletableFuture<Long> late = logger.logAsync("late".getBytes());
+        assertTrue(late.isCompletedExceptionally());
+
+        logger = Logger.open(filename);
+        logger.rewind();
+        int count = 0;
+        while (logger.next() != null) {
+            count++;
+        }
+        logger.close();
+
+        assertEquals(102, count);
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testCrc32c() {
+        byte[] check = "123456789".getBytes();
+        assertEquals(0xE3069283, Crc32c.compute(check, 0, check.length));
+
+        Crc32c.TableChecksum table = new Crc32c.TableChecksum();
+        table.update(check, 0, check.length);
+        assertEquals(0xE3069283L, table.getValue());
+    }
+
+    @Test
+    public void testOpenLegacyFormat() throws Exception {
+        String filename = "./logger_legacy_test";
+        File f = new File(filename + LoggerImpl.LOG_FILE_SUFFIX);
+
+        // 旧格式: [XChecksum] [size, checksum, data] ...
+        String[] data = {"aaa", "bbbb"};
+        ByteBuffer buf = ByteBuffer.allocate(4 + 2 * 8 + 7);
+        buf.putInt(0);
+        int xCheck = 0;
+        for (String d : data) {
+            byte[] raw = d.getBytes();
+            int checksum = 0;
+            for (byte b : raw) {
+                checksum = checksum * 13331 + b;
+            }
+            ByteBuffer log = ByteBuffer.allocate(8 + raw.length).putInt(raw.length).putInt(checksum).put(raw);
+            for (byte b : log.array()) {
+                xCheck = xCheck * 13331 + b;
+            }
+            buf.put(log.array());
+        }
+        buf.putInt(0, xCheck);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(buf.array());
+        }
+
+        Logger logger = Logger.open(filename);
+        logger.log("ccccc".getBytes());
+        logger.close();
+
+        logger = Logger.open(filename);
+        logger.rewind();
+        assertEquals("aaa", new String(logger.next()));
+        assertEquals("bbbb", new String(logger.next()));
+        assertEquals("ccccc", new String(logger.next()));
+        logger.close();
+
+        assertTrue(f.delete());
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        String filename = "./logger_torn_tail_test";
+        File f = new File(filename + LoggerImpl.LOG_FILE_SUFFIX);
+        Logger logger = Logger.create(filename);
+        logger.log("aaa".getBytes());
+        long end = logger.log("bbbb".getBytes()) + 8 + 4;
+        logger.close();
+
+        // 模拟崩溃时写了一半的日志
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(end);
+            raf.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        }
+
+        // 打开时不扫描, 写日志前才确定文件尾并截掉 bad_tail
+        logger = Logger.open(filename);
+        assertEquals(end + 7, f.length());
+        assertEquals(end, logger.log("ccccc".getBytes()));
+        logger.close();
+        assertEquals(end + 8 + 5, f.length());
+
+        logger = Logger.open(filename);
+        logger.rewind();
+        assertEquals("aaa", new String(logger.next()));
+        assertEquals("bbbb", new String(logger.next()));
+        assertEquals("ccccc", new String(logger.next()));
+        assertEquals(null, logger.next());
+        logger.close();
+
+        assertTrue(f.delete());
+    }
+
+    @Test
+    public void testScanCorruptSize() throws Exception {
+        String filename = "./logger_scan_corrupt_size_test";
+        File f = new File(filename + LoggerImpl.LOG_FILE_SUFFIX);
+        Logger logger = Logger.create(filename);
+        logger.log("aaa".getBytes());
+        long end = logger.log("bbbb".getBytes()) + 8 + 4;
+        logger.close();
+
+        // 残留数据的长度字段: 加上日志头后溢出为负数, 以及接近 2GB 的长度
+        for (int size : new int[]{Integer.MAX_VALUE - 4, Integer.MAX_VALUE - (1 << 16)}) {
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.seek(end);
+                raf.writeInt(size);
+                raf.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            }
+
+            logger = Logger.open(filename);
+            List<String> logs = new ArrayList<>();
+            logger.scan((lsn, log) -> logs.add(new String(log.getArray(), log.getStart(), log.getEnd() - log.getStart())));
+            assertEquals(2, logs.size());
+            assertEquals("bbbb", logs.get(1));
+            logger.close();
+            // 扫描到文件尾时截掉 bad_tail
+            assertEquals(end, f.length());
+        }
+
+        assertTrue(f.delete());
+    }
+
+    @Test
+    public void testScan() {
+        String filename = "./logger_scan_test";
+        Logger logger = Logger.create(filename);
+
+        // 包含一条超过读缓冲区大小的日志
+        int[] sizes = {3, 0, 2 << 20, 5, 100};
+        long[] lsns = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = new byte[sizes[i]];
+            if (data.length > 0) {
+                data[data.length - 1] = (byte) i;
+            }
+            lsns[i] = logger.log(data, false);
+        }
+        logger.close();
+
+        logger = Logger.open(filename);
+        List<Long> visited = new ArrayList<>();
+        logger.scan((lsn, log) -> {
+            int i = visited.size();
+            assertEquals(lsns[i], lsn);
+            assertEquals(sizes[i], log.getEnd() - log.getStart());
+            if (sizes[i] > 0) {
+                assertEquals(i, log.getArray()[log.getEnd() - 1]);
+            }
+            visited.add(lsn);
+            return true;
+        });
+        assertEquals(sizes.length, visited.size());
+
+        // 提前结束
+        visited.clear();
+        logger.scan((lsn, log) -> visited.add(lsn) && visited.size() < 2);
+        assertEquals(2, visited.size());
+
+        assertEquals(lsns[4] + 8 + 100, logger.log("tail".getBytes()));
+        logger.close();
+
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testLogParts() {
+        String filename = "./logger_parts_test";
+        Logger logger = Logger.create(filename);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put("cccc".getBytes()).flip();
+        ByteBuffer slice = ByteBuffer.wrap("xxbbbxx".getBytes(), 2, 3);
+        logger.log(ByteBuffer.wrap("aa".getBytes()), slice, direct);
+        assertEquals(0, slice.remaining());
+        logger.log("dd".getBytes());
+        logger.close();
+
+        logger = Logger.open(filename);
+        logger.rewind();
+        assertEquals("aabbbcccc", new String(logger.next()));
+        assertEquals("dd", new String(logger.next()));
+        logger.close();
+
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testScanFrom() {
+        String filename = "./logger_scan_from_test";
+        Logger logger = Logger.create(filename);
+
+        long[] lsns = new long[20];
+        for (int i = 0; i < lsns.length; i++) {
+            lsns[i] = logger.log(new byte[]{(byte) i}, false);
+        }
+        logger.flush(lsns[lsns.length - 1]);
+
+        // 从第 5 条日志开始
+        List<Long> scanned = new ArrayList<>();
+        logger.scan(lsns[5], (lsn, log) -> {
+            assertEquals(scanned.size() + 5, log.getArray()[log.getStart()]);
+            scanned.add(lsn);
+            return true;
+        });
+        assertEquals(15, scanned.size());
+        assertEquals(lsns[5], (long) scanned.get(0));
+
+        // 从日志末尾开始读不到日志
+        logger.scan(logger.getFlushedLsn(), (lsn, log) -> {
+            throw new AssertionError();
+        });
+        logger.close();
+
+        assertTrue(new File(filename + LoggerImpl.LOG_FILE_SUFFIX).delete());
+    }
 }
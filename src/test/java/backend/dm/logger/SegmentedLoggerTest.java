@@ -0,0 +1,153 @@
+package backend.dm.logger;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedLoggerTest {
+
+    private static File[] segmentFiles(String filename) {
+        File f = new File(filename).getAbsoluteFile();
+        String prefix = f.getName() + ".";
+        return f.getParentFile().listFiles((dir, name) -> name.startsWith(prefix)
+                && name.endsWith(SegmentedLogger.SEGMENT_SUFFIX));
+    }
+
+    private static void deleteAll(String filename) {
+        for (File f : segmentFiles(filename)) {
+            assertTrue(f.delete());
+        }
+        assertTrue(new File(filename + SegmentedLogger.MANIFEST_SUFFIX).delete());
+    }
+
+    @Test
+    public void testRotateAndRecycle() {
+        String filename = "./segmented_logger_test";
+        Logger logger = SegmentedLogger.create(filename, 1024);
+
+        // 每条日志 8 + 100 字节, 一个段放 9 条
+        long[] lsns = new long[50];
+        for (int i = 0; i < lsns.length; i++) {
+            byte[] data = new byte[100];
+            data[0] = (byte) i;
+            lsns[i] = logger.log(data, i % 10 == 9);
+        }
+        logger.close();
+        assertEquals(1024 + 16, lsns[9]);
+
+        logger = SegmentedLogger.open(filename);
+        logger.rewind();
+        for (int i = 0; i < lsns.length; i++) {
+            byte[] log = logger.next();
+            assertEquals(i, log[0]);
+        }
+        assertEquals(null, logger.next());
+
+        // 回收第 20 条日志之前的段
+        logger.dropBefore(lsns[20]);
+        assertEquals(2048, ((SegmentedLogger) logger).getFirstLsn());
+        long lsn = logger.log(new byte[]{(byte) 50});
+        logger.close();
+        // 最多保留当前段之后的 2 个预分配段
+        assertTrue(segmentFiles(filename).length <= 6);
+
+        logger = SegmentedLogger.open(filename);
+        int[] scanned = {0};
+        logger.scan((l, view) -> {
+            assertEquals(18 + scanned[0]++, view.getArray()[view.getStart()]);
+            return true;
+        });
+        assertEquals(50 - 18 + 1, scanned[0]);
+
+        logger.rewind();
+        byte[] log = logger.next();
+        assertEquals(18, log[0]);
+        int count = 1;
+        while ((log = logger.next()) != null) {
+            count++;
+        }
+        assertEquals(50 - 18 + 1, count);
+        assertEquals(lsn + 8 + 1, logger.getFlushedLsn());
+        logger.close();
+
+        deleteAll(filename);
+    }
+
+    @Test
+    public void testScanCorruptSize() throws Exception {
+        String filename = "./segmented_logger_corrupt_size_test";
+        Logger logger = SegmentedLogger.create(filename, 1024);
+        for (int i = 0; i < 3; i++) {
+            logger.log(new byte[]{(byte) i});
+        }
+        logger.close();
+
+        // 段中残留数据的长度字段超出段尾
+        File first = new File(filename + String.format(".%016x", 0) + SegmentedLogger.SEGMENT_SUFFIX);
+        for (int size : new int[]{Integer.MAX_VALUE - 4, 1024}) {
+            try (RandomAccessFile raf = new RandomAccessFile(first, "rw")) {
+                raf.seek(16 + 3 * 9);
+                raf.writeInt(size);
+                raf.writeInt(0x12345678);
+            }
+
+            logger = SegmentedLogger.open(filename);
+            int[] scanned = {0};
+            logger.scan((lsn, view) -> {
+                assertEquals(scanned[0]++, view.getArray()[view.getStart()]);
+                return true;
+            });
+            assertEquals(3, scanned[0]);
+            logger.close();
+        }
+
+        deleteAll(filename);
+    }
+
+    @Test
+    public void testReopenKeepsPreallocated() throws Exception {
+        String filename = "./segmented_logger_reopen_test";
+        LoggerConfig config = LoggerConfig.defaultConfig();
+        config.setSegmented(true);
+        config.setSegmentSize(1024);
+        Logger logger = Logger.create(filename, config);
+        assertTrue(logger instanceof SegmentedLogger);
+        for (int i = 0; i < 3; i++) {
+            logger.log(new byte[100]);
+        }
+        logger.close();
+        // 当前段和后台准备好的下一个段
+        assertEquals(2, segmentFiles(filename).length);
+
+        // 模拟崩溃时写了一半的日志
+        File first = new File(filename + String.format(".%016x", 0) + SegmentedLogger.SEGMENT_SUFFIX);
+        byte[] garbage = new byte[108];
+        Arrays.fill(garbage, (byte) 0xFF);
+        garbage[0] = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(first, "rw")) {
+            raf.seek(16 + 3 * 108);
+            raf.write(garbage);
+        }
+
+        logger = Logger.open(filename);
+        assertTrue(logger instanceof SegmentedLogger);
+        assertEquals(16 + 3 * 108, logger.getFlushedLsn());
+        logger.close();
+        assertEquals(2, segmentFiles(filename).length);
+
+        byte[] tail = new byte[garbage.length];
+        try (RandomAccessFile raf = new RandomAccessFile(first, "r")) {
+            raf.seek(16 + 3 * 108);
+            raf.readFully(tail);
+        }
+        assertArrayEquals(new byte[garbage.length], tail);
+
+        deleteAll(filename);
+    }
+}
@@ -2,8 +2,287 @@ package backend.tm;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 public class TransactionManagerTest {
 
     @Test
     public void testMultiThread() {}
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String filename = "./tm_group_commit_test";
+        TransactionManagerConfig config = TransactionManagerConfig.defaultConfig();
+        config.setGroupCommit(true);
+        config.setMaxBatchSize(16);
+        config.setMaxWaitMicros(100);
+        TransactionManager tm = TransactionManager.create(filename, config);
+
+        int threads = 8, rounds = 100;
+        ConcurrentHashMap<Long, Boolean> committed = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(threads);
+        // 工作线程中的失败交给主线程断言, 线程异常退出时 done.await() 不会一直等待
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j = 0; j < rounds; j++) {
+                        long xid = tm.begin();
+                        if (!tm.isActive(xid)) {
+                            throw new IllegalStateException("xid " + xid + " not active after begin");
+                        }
+                        if (xid % 3 == 0) {
+                            tm.abort(xid);
+                            committed.put(xid, false);
+                        } else {
+                            tm.commit(xid);
+                            committed.put(xid, true);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+            t.start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        tm.close();
+
+        assertEquals(threads * rounds, committed.size());
+        TransactionManager reopened = TransactionManager.open(filename);
+        for (long xid = 1; xid <= threads * rounds; xid++) {
+            assertEquals(committed.get(xid), reopened.isCommitted(xid));
+            assertEquals(!committed.get(xid), reopened.isAborted(xid));
+        }
+        reopened.close();
+
+        assertTrue(new File(filename + TransactionManager.XID_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testMapped() {
+        String filename = "./tm_mapped_test";
+        TransactionManagerConfig config = TransactionManagerConfig.defaultConfig();
+        config.setMapped(true);
+        TransactionManager tm = TransactionManager.create(filename, config);
+
+        long x1 = tm.begin();
+        long x2 = tm.begin();
+        long x3 = tm.begin();
+        tm.commit(x1);
+        tm.abort(x2);
+        assertTrue(tm.isCommitted(x1));
+        assertTrue(tm.isAborted(x2));
+        assertTrue(tm.isActive(x3));
+        tm.close();
+
+        // 映射方式写入的文件可以由 FileChannel 方式打开
+        tm = TransactionManager.open(filename);
+        assertTrue(tm.isCommitted(x1));
+        assertTrue(tm.isAborted(x2));
+        assertTrue(tm.isActive(x3));
+        assertEquals(x3 + 1, tm.begin());
+        tm.close();
+
+        tm = TransactionManager.open(filename, config);
+        assertTrue(tm.isActive(x3 + 1));
+        tm.close();
+
+        assertTrue(new File(filename + TransactionManager.XID_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testSnapshot() {
+        String filename = "./tm_snapshot_test";
+        TransactionManager tm = TransactionManager.create(filename);
+
+        long x1 = tm.begin(), x2 = tm.begin(), x3 = tm.begin();
+        tm.commit(x1);
+        Snapshot snapshot = tm.snapshot();
+        long x4 = tm.begin();
+        tm.commit(x2);
+
+        assertEquals(x2, snapshot.getXmin());
+        assertEquals(x3 + 1, snapshot.getXmax());
+        assertEquals(2, snapshot.getActiveCount());
+        assertFalse(snapshot.isActive(x1));
+        assertTrue(snapshot.isActive(x2));
+        assertTrue(snapshot.isActive(x3));
+        assertTrue(snapshot.isActive(x4));
+        tm.close();
+
+        // 重新打开后, 未结束的事务仍出现在快照中
+        tm = TransactionManager.open(filename);
+        snapshot = tm.snapshot();
+        assertEquals(x3, snapshot.getXmin());
+        assertEquals(2, snapshot.getActiveCount());
+        assertFalse(snapshot.isActive(x2));
+        assertTrue(snapshot.isActive(x4));
+        tm.close();
+
+        assertTrue(new File(filename + TransactionManager.XID_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testReserveXID() {
+        String filename = "./tm_reserve_test";
+        TransactionManagerConfig config = TransactionManagerConfig.defaultConfig();
+        config.setXidReserveSize(8);
+        TransactionManager tm = TransactionManager.create(filename, config);
+
+        for (long xid = 1; xid <= 10; xid++) {
+            assertEquals(xid, tm.begin());
+        }
+        tm.commit(10);
+        tm.close();
+
+        // 文件头记录预留到 16, 打开后从状态区恢复出已分配的 10
+        File f = new File(filename + TransactionManager.XID_FILE_SUFFIX);
+        assertEquals(TransactionManager.XID_HEADER_LENGTH + 16 * TransactionManager.XID_SIZE, f.length());
+
+        tm = TransactionManager.open(filename, config);
+        assertTrue(tm.isCommitted(10));
+        assertFalse(tm.isActive(11));
+        assertEquals(11, tm.begin());
+        tm.close();
+
+        assertTrue(f.delete());
+    }
+
+    @Test
+    public void testPackedLowWatermark() {
+        String filename = "./tm_packed_test";
+        TransactionManagerConfig config = TransactionManagerConfig.defaultConfig();
+        config.setPacked(true);
+        config.setXidReserveSize(16);
+        TransactionManager tm = TransactionManager.create(filename, config);
+
+        for (long xid = 1; xid <= 40; xid++) {
+            assertEquals(xid, tm.begin());
+            if (xid % 5 == 0) {
+                tm.abort(xid);
+            } else if (xid != 32) {
+                tm.commit(xid);
+            }
+        }
+
+        // 低水位停在仍在运行的 32
+        assertEquals(32, tm.advanceLowWatermark(100));
+        assertTrue(tm.isCommitted(0));
+        assertTrue(tm.isCommitted(31));
+        assertTrue(tm.isAborted(25));
+        assertFalse(tm.isActive(25));
+        assertTrue(tm.isActive(32));
+        tm.close();
+
+        File f = new File(filename + TransactionManager.XID_FILE_SUFFIX);
+        // 打包格式: 文件头 36 字节, xid 0 ~ 48 每个 2 bit
+        assertEquals(36 + 49 / 4 + 1, f.length());
+
+        tm = TransactionManager.open(filename);
+        assertEquals(32, tm.getLowWatermark());
+        assertTrue(tm.isAborted(5));
+        assertTrue(tm.isCommitted(6));
+        assertTrue(tm.isActive(32));
+        assertTrue(tm.isAborted(40));
+        tm.commit(32);
+        assertEquals(41, tm.advanceLowWatermark(41));
+        assertTrue(tm.isCommitted(32));
+        assertTrue(tm.isAborted(40));
+        assertEquals(41, tm.begin());
+        tm.close();
+
+        assertTrue(f.delete());
+    }
+
+    @Test
+    public void testLegacyLowWatermark() {
+        String filename = "./tm_legacy_watermark_test";
+        TransactionManager tm = TransactionManager.create(filename);
+        long xid = tm.begin();
+        tm.commit(xid);
+
+        // 原格式没有低水位, 推进不做任何事
+        assertEquals(1, tm.advanceLowWatermark(xid + 1));
+        assertEquals(1, tm.getLowWatermark());
+        assertTrue(tm.isCommitted(xid));
+        tm.close();
+
+        assertTrue(new File(filename + TransactionManager.XID_FILE_SUFFIX).delete());
+    }
+
+    @Test
+    public void testPackedCompaction() throws Exception {
+        String filename = "./tm_compact_test";
+        File f = new File(filename + TransactionManager.XID_FILE_SUFFIX);
+
+        // 直接构造打包格式的文件: 低水位之前的状态超过 64KB, 打开时重写
+        long watermark = 290000, reserved = 300003;
+        byte[] status = new byte[(int) (reserved / 4 + 1)];
+        for (long xid = 0; xid <= reserved; xid++) {
+            byte s = AbstractTransactionManager.TRANSACTION_COMMITTED;
+            if (xid == watermark) {
+                s = AbstractTransactionManager.TRANSACTION_ACTIVE;
+            } else if (xid % 1000 == 7 || xid == reserved) {
+                s = AbstractTransactionManager.TRANSACTION_ABORTED;
+            }
+            status[(int) (xid / 4)] |= s << (xid % 4) * 2;
+        }
+        ByteBuffer header = ByteBuffer.allocate(AbstractTransactionManager.PACKED_HEADER_LENGTH);
+        header.putInt(AbstractTransactionManager.PACKED_MAGIC)
+                .putInt(AbstractTransactionManager.PACKED_VERSION)
+                .putLong(reserved)
+                .putLong(watermark)
+                .putLong(0)
+                .putInt(0);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(header.array());
+            raf.write(status);
+        }
+        long length = f.length();
+
+        TransactionManager tm = TransactionManager.open(filename);
+        assertTrue(f.length() < length - 64 * 1024);
+        assertFalse(new File(f.getPath() + ".tmp").exists());
+        checkCompacted(tm, watermark, reserved);
+        assertEquals(reserved + 1, tm.begin());
+        tm.commit(reserved + 1);
+        tm.close();
+
+        // 重写后的文件可以再次打开, 不再重写
+        length = f.length();
+        tm = TransactionManager.open(filename);
+        assertEquals(length, f.length());
+        checkCompacted(tm, watermark, reserved);
+        assertTrue(tm.isCommitted(reserved + 1));
+        tm.close();
+
+        assertTrue(f.delete());
+    }
+
+    private void checkCompacted(TransactionManager tm, long watermark, long reserved) {
+        assertEquals(watermark, tm.getLowWatermark());
+        for (long xid = 1; xid < reserved; xid += 997) {
+            assertEquals(xid % 1000 == 7, tm.isAborted(xid));
+        }
+        assertTrue(tm.isAborted(7));
+        assertTrue(tm.isAborted(289007));
+        assertTrue(tm.isCommitted(289008));
+        assertTrue(tm.isActive(watermark));
+        assertTrue(tm.isAborted(reserved));
+    }
 }